@@ -0,0 +1,23 @@
+package com.anormous.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Keeps beans of the annotated entity in the session's second level cache
+ * between lookups by id. Meant for reference data that is read far more
+ * often than it is written.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.TYPE })
+public @interface Cacheable
+{
+	int maxEntries() default 500;
+
+	/**
+	 * How long a cached bean stays valid, 0 keeps it until evicted
+	 */
+	long ttlMillis() default 0;
+}
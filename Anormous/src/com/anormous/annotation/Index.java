@@ -0,0 +1,33 @@
+package com.anormous.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Index on the table of the annotated entity, created together with the
+ * table. Use {@link Indexes} to declare more than one.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.TYPE })
+public @interface Index
+{
+	/**
+	 * Indexed properties in order, each optionally followed by ASC or DESC
+	 */
+	String[] value();
+
+	/**
+	 * Defaults to idx_&lt;table&gt;_&lt;columns&gt;
+	 */
+	String name() default "";
+
+	boolean unique() default false;
+
+	/**
+	 * Condition of a partial index, written with property names like any
+	 * where clause. Needs SQLite 3.8.0 or later.
+	 */
+	String where() default "";
+}
@@ -1,13 +1,49 @@
 package com.anormous.base;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.anormous.logger.Logger;
 import com.anormous.mapper.DefaultEntityMapper;
+import com.anormous.mapper.EntityMapping;
 import com.anormous.mapper.IEntityMapper;
+import com.anormous.mapper.MappingSnapshot;
 
 public class AnormousConfig
 {
+	/**
+	 * How properties of entities without a generated accessor are read and
+	 * written.
+	 */
+	public static enum AccessorStrategy
+	{
+		/**
+		 * Plain reflection, looked up and access checked on every call
+		 */
+		REFLECTION,
+
+		/**
+		 * Fields, methods and constructors are resolved and made accessible
+		 * once per entity when it is first mapped
+		 */
+		CACHED_REFLECTION
+	}
+
+	private static final String TAG = "AnormousConfig";
+
 	private static AnormousConfig anormousConfig;
 
 	private IEntityMapper entityMapper;
+	private volatile AccessorStrategy accessorStrategy = AccessorStrategy.CACHED_REFLECTION;
+	private volatile MappingSnapshot mappingSnapshot;
 
 	public synchronized static AnormousConfig initialize()
 	{
@@ -31,4 +67,135 @@ public class AnormousConfig
 	{
 		this.entityMapper = entityMapper;
 	}
+
+	/**
+	 * Maps the given entity classes on background threads, so the first
+	 * query for each of them does not pay for scanning the class. Mapping
+	 * errors are reported through the returned futures.
+	 */
+	public List<Future<EntityMapping<?>>> warmUp(Class<?>... entityClasses)
+	{
+		List<Future<EntityMapping<?>>> futures = new ArrayList<Future<EntityMapping<?>>>(entityClasses.length);
+
+		if (entityClasses.length == 0)
+			return futures;
+
+		final IEntityMapper mapper = entityMapper;
+		final AtomicInteger threadCount = new AtomicInteger();
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(entityClasses.length, Runtime.getRuntime().availableProcessors()), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "anormous-warmup-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+
+				return thread;
+			}
+		});
+
+		try
+		{
+			for (final Class<?> entityClass : entityClasses)
+			{
+				futures.add(executor.submit(new Callable<EntityMapping<?>>()
+				{
+					@Override
+					public EntityMapping<?> call() throws Exception
+					{
+						return mapper.mapClass(entityClass);
+					}
+				}));
+			}
+
+			final List<Future<EntityMapping<?>>> mappings = new ArrayList<Future<EntityMapping<?>>>(futures);
+
+			// Queued behind the mappings, so it only waits for the ones
+			// still running on other threads
+			executor.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (Future<EntityMapping<?>> mapping : mappings)
+					{
+						try
+						{
+							mapping.get();
+						}
+						catch (Exception ex)
+						{
+							Logger.w(TAG, "Error warming up entity mapping", ex);
+						}
+					}
+
+					saveMappingSnapshot();
+				}
+			});
+		}
+		finally
+		{
+			// Threads exit once the queued classes are mapped
+			executor.shutdown();
+		}
+
+		return futures;
+	}
+
+	public MappingSnapshot getMappingSnapshot()
+	{
+		return mappingSnapshot;
+	}
+
+	/**
+	 * Restores entity mappings from the given file instead of scanning the
+	 * classes, and records mappings that are not in it yet. The snapshot is
+	 * discarded when its schema version differs, so pass a number that
+	 * changes whenever any entity class does (the app version code works).
+	 * Like the accessor strategy, set it before the first session is used.
+	 */
+	public void setMappingSnapshot(File file, int schemaVersion)
+	{
+		this.mappingSnapshot = file != null ? new MappingSnapshot(file, schemaVersion) : null;
+	}
+
+	/**
+	 * Writes mappings recorded since the snapshot was loaded, this also
+	 * happens automatically once {@link #warmUp} completes.
+	 */
+	public void saveMappingSnapshot()
+	{
+		MappingSnapshot snapshot = mappingSnapshot;
+
+		if (snapshot == null)
+			return;
+
+		try
+		{
+			snapshot.save();
+		}
+		catch (IOException ex)
+		{
+			Logger.w(TAG, "Error saving mapping snapshot", ex);
+		}
+	}
+
+	public AccessorStrategy getAccessorStrategy()
+	{
+		return accessorStrategy;
+	}
+
+	/**
+	 * Only applies to entities mapped after the call, so set it before the
+	 * first session is used.
+	 */
+	public void setAccessorStrategy(AccessorStrategy accessorStrategy)
+	{
+		if (accessorStrategy == null)
+			throw new IllegalArgumentException("Accessor strategy can not be null");
+
+		this.accessorStrategy = accessorStrategy;
+	}
 }
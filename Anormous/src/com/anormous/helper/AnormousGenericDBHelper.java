@@ -46,4 +46,11 @@ public abstract class AnormousGenericDBHelper extends SQLiteOpenHelper
 		myDataBase = SQLiteDatabase.openDatabase(myPath, null, flags);
 		return myDataBase;
 	}
+
+	public SQLiteDatabase openReadOnlyConnection() throws SQLException
+	{
+		// Opens an additional connection that is not tracked by the helper,
+		// callers own it and must close it themselves
+		return SQLiteDatabase.openDatabase(dbPath + dbName, null, SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+	}
 }
\ No newline at end of file
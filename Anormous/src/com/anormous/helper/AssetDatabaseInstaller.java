@@ -0,0 +1,262 @@
+package com.anormous.helper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import android.content.res.AssetManager;
+
+import com.anormous.logger.Logger;
+
+/**
+ * Copies a prebuilt database out of the assets, plain or compressed as
+ * <code>&lt;name&gt;.gz</code> or <code>&lt;name&gt;.zip</code>. The copy is
+ * written next to the target and renamed over it, and a marker file records
+ * what was installed so an unchanged asset is not copied again.
+ */
+public class AssetDatabaseInstaller
+{
+	private static final String TAG = "AssetDatabaseInstaller";
+
+	public final static String MARKER_SUFFIX = ".installed";
+	public final static int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+	private static final String KEY_ASSET = "asset";
+	private static final String KEY_VERSION = "version";
+	private static final String KEY_LENGTH = "length";
+
+	private final AssetManager assets;
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+	public AssetDatabaseInstaller(AssetManager assets)
+	{
+		this.assets = assets;
+	}
+
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	public void setBufferSize(int bufferSize)
+	{
+		if (bufferSize < 1)
+			throw new IllegalArgumentException("Buffer size must be positive, found : " + bufferSize);
+
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * True when the target holds the given version of the asset, as recorded
+	 * by the last install, and still has the length it was copied with. A
+	 * database deleted or recreated empty behind the marker's back, or
+	 * written to since, is not taken for the installed copy.
+	 */
+	public boolean isInstalled(String assetName, File target, int version)
+	{
+		Properties marker = readMarker(target);
+
+		return marker != null && target.length() > 0 && assetName.equals(marker.getProperty(KEY_ASSET)) && String.valueOf(version).equals(marker.getProperty(KEY_VERSION)) && String.valueOf(target.length()).equals(marker.getProperty(KEY_LENGTH));
+	}
+
+	/**
+	 * Copies the asset over the target unless it is already installed, or
+	 * always when forced. Returns whether a copy happened.
+	 */
+	public boolean install(String assetName, File target, int version, boolean force) throws IOException
+	{
+		if (!force && target.exists() && isInstalled(assetName, target, version))
+		{
+			Logger.i(TAG, "Database " + target + " is up to date with asset " + assetName);
+
+			return false;
+		}
+
+		long start = System.nanoTime();
+
+		File temporary = new File(target.getPath() + ".tmp");
+		InputStream input = openAsset(assetName);
+		FileOutputStream output = null;
+		long length = 0;
+
+		try
+		{
+			output = new FileOutputStream(temporary);
+
+			ReadableByteChannel source = Channels.newChannel(input);
+			FileChannel destination = output.getChannel();
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+
+			while (source.read(buffer) != -1)
+			{
+				buffer.flip();
+
+				length += buffer.limit();
+
+				while (buffer.hasRemaining())
+				{
+					destination.write(buffer);
+				}
+
+				buffer.clear();
+			}
+
+			destination.force(true);
+		}
+		catch (IOException ex)
+		{
+			temporary.delete();
+
+			throw ex;
+		}
+		finally
+		{
+			closeQuietly(input);
+			closeQuietly(output);
+		}
+
+		// Stale marker first, so a crash before the new one is written
+		// leads to another copy instead of a skipped one
+		markerFile(target).delete();
+
+		if (!temporary.renameTo(target))
+		{
+			temporary.delete();
+
+			throw new IOException("Can not replace database " + target);
+		}
+
+		Properties marker = new Properties();
+
+		marker.setProperty(KEY_ASSET, assetName);
+		marker.setProperty(KEY_VERSION, String.valueOf(version));
+		marker.setProperty(KEY_LENGTH, String.valueOf(length));
+
+		writeMarker(target, marker);
+
+		Logger.i(TAG, "Installed " + length + " bytes of asset " + assetName + " to " + target + " in " + ((System.nanoTime() - start) / 1000000L) + " ms");
+
+		return true;
+	}
+
+	/**
+	 * Forgets the recorded install, so the next one copies again.
+	 */
+	public void reset(File target)
+	{
+		markerFile(target).delete();
+	}
+
+	private InputStream openAsset(String assetName) throws IOException
+	{
+		try
+		{
+			return assets.open(assetName, AssetManager.ACCESS_STREAMING);
+		}
+		catch (FileNotFoundException e)
+		{
+			// Try the compressed forms
+		}
+
+		try
+		{
+			return new GZIPInputStream(assets.open(assetName + ".gz", AssetManager.ACCESS_STREAMING), bufferSize);
+		}
+		catch (FileNotFoundException e)
+		{
+			// Try the zip form
+		}
+
+		ZipInputStream zip = new ZipInputStream(assets.open(assetName + ".zip", AssetManager.ACCESS_STREAMING));
+		ZipEntry entry;
+
+		while ((entry = zip.getNextEntry()) != null)
+		{
+			if (!entry.isDirectory())
+				return zip;
+		}
+
+		zip.close();
+
+		throw new FileNotFoundException("Asset " + assetName + ".zip has no entries");
+	}
+
+	private static File markerFile(File target)
+	{
+		return new File(target.getPath() + MARKER_SUFFIX);
+	}
+
+	private static Properties readMarker(File target)
+	{
+		File file = markerFile(target);
+
+		if (!file.exists())
+			return null;
+
+		InputStream input = null;
+
+		try
+		{
+			input = new FileInputStream(file);
+
+			Properties marker = new Properties();
+
+			marker.load(input);
+
+			return marker;
+		}
+		catch (IOException e)
+		{
+			Logger.w(TAG, "Can not read install marker " + file, e);
+
+			return null;
+		}
+		finally
+		{
+			closeQuietly(input);
+		}
+	}
+
+	private static void writeMarker(File target, Properties marker) throws IOException
+	{
+		OutputStream output = new FileOutputStream(markerFile(target));
+
+		try
+		{
+			marker.store(output, null);
+		}
+		finally
+		{
+			output.close();
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable)
+	{
+		if (closeable == null)
+			return;
+
+		try
+		{
+			closeable.close();
+		}
+		catch (IOException e)
+		{
+			Logger.d(TAG, "Error closing stream", e);
+		}
+	}
+}
@@ -1,12 +1,15 @@
 package com.anormous.helper;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.anormous.logger.Logger;
+import com.anormous.mapper.SQLTokenizer;
 
 import android.content.Context;
 import android.database.SQLException;
@@ -84,15 +87,109 @@ public abstract class AutoReplaceDBHelper extends AnormousGenericDBHelper
 
 		if (oldVersion < newVersion)
 		{
+			if (applyPatches(db, oldVersion, newVersion))
+				return;
+
 			// Older version of DB Found
 			Logger.i(this.getClass().toString(), "Refreshing DB to version : " + newVersion);
 
 			dbContext.deleteDatabase(dbName);
+			new AssetDatabaseInstaller(dbContext.getAssets()).reset(databaseFile());
 
 			onCreate(db);
 		}
 	}
 
+	/**
+	 * Name of the asset with the SQL that upgrades the database from the
+	 * previous version to the given one, <code>&lt;dbName&gt;.&lt;version&gt;.sql</code>
+	 * by default.
+	 */
+	protected String getPatchAssetName(int version)
+	{
+		return dbName + "." + version + ".sql";
+	}
+
+	/**
+	 * Runs the patches from oldVersion up to newVersion in one transaction,
+	 * keeping the rows of the installed database. Returns false without
+	 * touching the database when any patch is missing, the database is then
+	 * replaced as a whole.
+	 */
+	private boolean applyPatches(SQLiteDatabase db, int oldVersion, int newVersion)
+	{
+		List<String> statements = new ArrayList<String>();
+
+		for (int version = oldVersion + 1; version <= newVersion; version++)
+		{
+			String script;
+
+			try
+			{
+				script = readAsset(getPatchAssetName(version));
+			}
+			catch (FileNotFoundException ex)
+			{
+				Logger.i(this.getClass().toString(), "No patch to version " + version + ", replacing the database");
+
+				return false;
+			}
+			catch (IOException ex)
+			{
+				Logger.e(this.getClass().toString(), "Error reading patch to version " + version, ex);
+
+				return false;
+			}
+
+			statements.addAll(SQLTokenizer.splitStatements(script));
+		}
+
+		long start = System.nanoTime();
+
+		db.beginTransaction();
+
+		try
+		{
+			for (String statement : statements)
+			{
+				db.execSQL(statement);
+			}
+
+			db.setTransactionSuccessful();
+		}
+		finally
+		{
+			db.endTransaction();
+		}
+
+		Logger.i(this.getClass().toString(), "Patched database from version " + oldVersion + " to " + newVersion + " with " + statements.size() + " statements in " + ((System.nanoTime() - start) / 1000000L) + " ms");
+
+		return true;
+	}
+
+	private String readAsset(String assetName) throws IOException
+	{
+		Reader reader = new InputStreamReader(dbContext.getAssets().open(assetName), "UTF-8");
+		StringBuilder content = new StringBuilder();
+
+		try
+		{
+			char[] buffer = new char[8192];
+			int length;
+
+			while ((length = reader.read(buffer)) > 0)
+			{
+				content.append(buffer, 0, length);
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		return content.toString();
+	}
+
 	@Override
 	public synchronized void close()
 	{
@@ -111,37 +208,29 @@ public abstract class AutoReplaceDBHelper extends AnormousGenericDBHelper
 		return myDataBase;
 	}
 
+	/**
+	 * Copies the asset again even when the installed database is recorded as
+	 * up to date, for applications that change the asset without bumping the
+	 * database version.
+	 */
+	protected boolean isForceInstall()
+	{
+		return false;
+	}
+
 	private void copyDBFileFromAssetsToAppFolder(SQLiteDatabase db) throws IOException
 	{
 		Logger.i(this.getClass().toString(), "Copying pre created database to folder : " + dbPath);
 
+		// Reopened and versioned even when the copy is skipped, the open
+		// helper only calls onCreate for a database without a version
 		dbCopyHappened = true;
-		// Open your local db as the input stream
-		InputStream myInput = dbContext.getAssets().open(dbName);
-
-		// Path to the just created empty db
-		String outFileName = dbPath + dbName;
-
-		File currentDB = new File(outFileName);
-
-		Logger.i(this.getClass().toString(), "DB File Existance Status : " + currentDB.exists());
-
-		currentDB.delete();
 
-		// Open the empty db as the output stream
-		OutputStream myOutput = new FileOutputStream(outFileName);
-
-		// transfer bytes from the inputfile to the outputfile
-		byte[] buffer = new byte[10240];
-		int length;
-		while ((length = myInput.read(buffer)) > 0)
-		{
-			myOutput.write(buffer, 0, length);
-		}
+		new AssetDatabaseInstaller(dbContext.getAssets()).install(dbName, databaseFile(), dbVersion, isForceInstall());
+	}
 
-		// Close the streams
-		myOutput.flush();
-		myOutput.close();
-		myInput.close();
+	private File databaseFile()
+	{
+		return new File(dbPath + dbName);
 	}
 }
\ No newline at end of file
@@ -1,8 +1,10 @@
 package com.anormous.helper;
 
+import com.anormous.error.AnormousException;
 import com.anormous.logger.Logger;
 
 import android.content.Context;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 
 /**
@@ -11,15 +13,30 @@ import android.database.sqlite.SQLiteDatabase;
  */
 public abstract class DefaultDBHelper extends AnormousGenericDBHelper
 {
+	private final Class<?>[] entityClasses;
+
 	protected DefaultDBHelper(Context context, String dbName, int dbVersion)
+	{
+		this(context, dbName, dbVersion, new Class<?>[0]);
+	}
+
+	/**
+	 * Tables of the given entity classes are created with the database and
+	 * get their missing columns added on every version upgrade.
+	 */
+	protected DefaultDBHelper(Context context, String dbName, int dbVersion, Class<?>... entityClasses)
 	{
 		super(context, dbName, dbVersion);
+
+		this.entityClasses = entityClasses.clone();
 	}
 
 	@Override
 	public void onCreate(SQLiteDatabase db)
 	{
 		Logger.i(this.getClass().toString(), "Database OnCreate Called");
+
+		updateSchema(db);
 	}
 
 	@Override
@@ -27,5 +44,25 @@ public abstract class DefaultDBHelper extends AnormousGenericDBHelper
 	{
 		Logger.i(this.getClass().toString(), "Database OnUpgrade Called");
 		Logger.i(this.getClass().toString(), "oldVersion = " + oldVersion + ", newVersion = " + newVersion);
+
+		updateSchema(db);
+	}
+
+	protected void updateSchema(SQLiteDatabase db)
+	{
+		if (entityClasses.length == 0)
+			return;
+
+		try
+		{
+			new SchemaDiffer().apply(db, entityClasses);
+		}
+		catch (AnormousException ex)
+		{
+			Logger.e(this.getClass().toString(), "Error Updating Database Schema", ex);
+
+			// Fails the open, so the version is not bumped over a half updated schema
+			throw new SQLException("Error updating database schema : " + ex.getMessage());
+		}
 	}
-}
\ No newline at end of file
+}
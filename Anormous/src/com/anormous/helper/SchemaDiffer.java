@@ -0,0 +1,158 @@
+package com.anormous.helper;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.anormous.error.AnormousException;
+import com.anormous.logger.Logger;
+import com.anormous.mapper.DefaultEntityMapper;
+import com.anormous.mapper.EntityMapping;
+import com.anormous.mapper.IEntityMapper;
+
+/**
+ * Brings the tables of a set of entity classes up to date with their
+ * mappings by creating missing tables and adding missing columns and
+ * indexes, leaving existing rows in place. Columns that are no longer mapped
+ * are kept, SQLite can not drop them.
+ */
+public class SchemaDiffer
+{
+	private static final String TAG = "SchemaDiffer";
+
+	private final IEntityMapper mapper;
+
+	public SchemaDiffer()
+	{
+		this(new DefaultEntityMapper());
+	}
+
+	public SchemaDiffer(IEntityMapper mapper)
+	{
+		this.mapper = mapper;
+	}
+
+	/**
+	 * Statements needed to bring the database in line with the given entity
+	 * classes, without running them.
+	 */
+	public List<String> diff(SQLiteDatabase db, Class<?>... entityClasses) throws AnormousException
+	{
+		List<String> statements = new ArrayList<String>();
+		Set<String> tables = new HashSet<String>();
+
+		for (Class<?> entityClass : entityClasses)
+		{
+			EntityMapping<?> mapping = mapper.mapClass(entityClass);
+
+			if (!tables.add(mapping.getMappedTableName().toLowerCase(Locale.US)))
+				continue;
+
+			Set<String> existingColumns = names(db, "PRAGMA table_info(" + mapping.getMappedTableName() + ");");
+
+			if (existingColumns.isEmpty())
+			{
+				statements.add(mapper.generateCreateTableStatement(entityClass));
+				statements.addAll(mapper.generateCreateIndexStatements(entityClass).values());
+
+				continue;
+			}
+
+			for (int i = 0; i < mapping.getColumnCount(); i++)
+			{
+				String columnName = mapping.getColumn(i).getColumnName();
+
+				if (!existingColumns.contains(columnName.toLowerCase(Locale.US)))
+					statements.add(mapper.generateAddColumnStatement(entityClass, columnName));
+			}
+
+			// After the columns they may refer to
+			Set<String> existingIndexes = names(db, "PRAGMA index_list(" + mapping.getMappedTableName() + ");");
+
+			for (Map.Entry<String, String> index : mapper.generateCreateIndexStatements(entityClass).entrySet())
+			{
+				if (!existingIndexes.contains(index.getKey().toLowerCase(Locale.US)))
+					statements.add(index.getValue());
+			}
+		}
+
+		return statements;
+	}
+
+	/**
+	 * Runs the statements returned by {@link #diff} in one transaction and
+	 * returns them.
+	 */
+	public List<String> apply(SQLiteDatabase db, Class<?>... entityClasses) throws AnormousException
+	{
+		long start = System.nanoTime();
+
+		db.beginTransaction();
+
+		try
+		{
+			List<String> statements = diff(db, entityClasses);
+
+			for (String statement : statements)
+			{
+				long statementStart = System.nanoTime();
+
+				db.execSQL(statement);
+
+				Logger.i(TAG, statement + " took " + ((System.nanoTime() - statementStart) / 1000000L) + " ms");
+			}
+
+			db.setTransactionSuccessful();
+
+			for (Class<?> entityClass : entityClasses)
+			{
+				mapper.mapClass(entityClass).setTableExists(true);
+			}
+
+			Logger.i(TAG, "Applied " + statements.size() + " schema changes in " + ((System.nanoTime() - start) / 1000000L) + " ms");
+
+			return statements;
+		}
+		catch (AnormousException ex)
+		{
+			throw ex;
+		}
+		catch (Exception ex)
+		{
+			throw new AnormousException("Error occured while updating the database schema", ex);
+		}
+		finally
+		{
+			db.endTransaction();
+		}
+	}
+
+	// Lower cased name column of a table_info or index_list pragma
+	private static Set<String> names(SQLiteDatabase db, String pragma)
+	{
+		Set<String> names = new HashSet<String>();
+		Cursor cursor = db.rawQuery(pragma, null);
+
+		try
+		{
+			int nameIndex = cursor.getColumnIndex("name");
+
+			while (cursor.moveToNext())
+			{
+				names.add(cursor.getString(nameIndex).toLowerCase(Locale.US));
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+
+		return names;
+	}
+}
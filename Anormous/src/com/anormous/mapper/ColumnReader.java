@@ -0,0 +1,13 @@
+package com.anormous.mapper;
+
+import android.database.Cursor;
+
+/**
+ * Reads one cursor column into a bean property. Readers are picked once per
+ * column mapping from the property type, so hydrating a row does not need to
+ * inspect types again.
+ */
+public interface ColumnReader
+{
+	void read(Cursor cursor, int index, Object bean) throws Exception;
+}
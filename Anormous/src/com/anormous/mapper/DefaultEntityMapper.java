@@ -4,30 +4,60 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteProgram;
 
 import com.anormous.annotation.Association.AssociationType;
 import com.anormous.annotation.Column;
 import com.anormous.annotation.IdentityColumn;
 import com.anormous.annotation.Association;
 import com.anormous.annotation.Ignore;
+import com.anormous.annotation.Index;
+import com.anormous.annotation.Indexes;
 import com.anormous.annotation.Table;
+import com.anormous.base.AnormousConfig;
+import com.anormous.base.AnormousConfig.AccessorStrategy;
 import com.anormous.error.AnormousException;
 import com.anormous.error.InvalidClassTypeException;
 import com.anormous.logger.Logger;
 import com.anormous.mapper.EntityMapping.ColumnMapping;
 import com.anormous.mapper.EntityMapping.IdColumnMapping;
 import com.anormous.mapper.EntityMapping.Property;
+import com.anormous.mapper.SQLTokenizer.Token;
+import com.anormous.mapper.SQLTokenizer.TokenType;
 
 public class DefaultEntityMapper implements IEntityMapper
 {
 	private static final String TAG = "DefaultEntityMapper";
-	private static Map<Class<?>, EntityMapping<?>> mapperCache = new LinkedHashMap<Class<?>, EntityMapping<?>>();
+	private static final ConcurrentMap<Class<?>, FutureTask<EntityMapping<?>>> mapperCache = new ConcurrentHashMap<Class<?>, FutureTask<EntityMapping<?>>>();
+
+	private static final int TRANSLATION_CACHE_SIZE = 256;
+	private static Map<TranslationKey, String> translationCache = Collections.synchronizedMap(new LinkedHashMap<TranslationKey, String>(TRANSLATION_CACHE_SIZE, 0.75f, true)
+	{
+		private static final long serialVersionUID = -2369165017339561093L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<TranslationKey, String> eldest)
+		{
+			return size() > TRANSLATION_CACHE_SIZE;
+		}
+	});
 
 	public DefaultEntityMapper()
 	{
@@ -37,141 +67,309 @@ public class DefaultEntityMapper implements IEntityMapper
 	@Override
 	public String forwardMapColumnNames(String query, Class<?> entityClass) throws AnormousException
 	{
-		EntityMapping<?> mapping = mapClass(entityClass);
+		if (query == null)
+			return null;
 
-		String result = query;
+		TranslationKey key = new TranslationKey(entityClass, query);
+		String result = translationCache.get(key);
 
-		for (ColumnMapping columnMapping : mapping.getMappedColumns().values())
+		if (result == null)
 		{
-			String propertyName = columnMapping.getProperty().getName();
-			result = result.replaceAll(propertyName, columnMapping.getColumnName());
+			result = translateColumnNames(query, mapClass(entityClass));
+
+			translationCache.put(key, result);
 		}
 
 		return result;
 	}
 
+	private String translateColumnNames(String query, EntityMapping<?> mapping)
+	{
+		Map<String, String> columnNames = new HashMap<String, String>();
+
+		for (int i = 0; i < mapping.getColumnCount(); i++)
+		{
+			ColumnMapping columnMapping = mapping.getColumn(i);
+
+			columnNames.put(columnMapping.getProperty().getName(), columnMapping.getColumnName());
+		}
+
+		List<Token> tokens = SQLTokenizer.tokenize(query);
+		StringBuilder result = new StringBuilder(query.length() + 16);
+
+		for (int i = 0; i < tokens.size(); i++)
+		{
+			Token token = tokens.get(i);
+			String columnName = null;
+
+			if (token.getType() == TokenType.IDENTIFIER && !isQualifierOrFunction(tokens, i))
+				columnName = columnNames.get(token.getText());
+
+			result.append(columnName != null ? columnName : token.getText());
+		}
+
+		return result.toString();
+	}
+
+	private boolean isQualifierOrFunction(List<Token> tokens, int index)
+	{
+		// Identifiers followed by '.' name a table and by '(' a function,
+		// neither of them is a property
+		for (int i = index + 1; i < tokens.size(); i++)
+		{
+			Token token = tokens.get(i);
+
+			if (token.getType() == TokenType.WHITESPACE || token.getType() == TokenType.COMMENT)
+				continue;
+
+			return token.getType() == TokenType.SYMBOL && (token.getText().equals(".") || token.getText().equals("("));
+		}
+
+		return false;
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
-	public <T> EntityMapping<T> mapClass(Class<T> entityClass) throws AnormousException
+	public <T> EntityMapping<T> mapClass(final Class<T> entityClass) throws AnormousException
 	{
-		if (mapperCache.containsKey(entityClass))
+		FutureTask<EntityMapping<?>> task = mapperCache.get(entityClass);
+
+		if (task == null)
 		{
-			EntityMapping<?> entityMapping = mapperCache.get(entityClass);
+			FutureTask<EntityMapping<?>> newTask = new FutureTask<EntityMapping<?>>(new Callable<EntityMapping<?>>()
+			{
+				@Override
+				public EntityMapping<?> call() throws Exception
+				{
+					return createMapping(entityClass);
+				}
+			});
 
-			return (EntityMapping<T>) entityMapping;
+			// Only the thread that wins the race scans the class, everyone
+			// else waits for its result
+			task = mapperCache.putIfAbsent(entityClass, newTask);
+
+			if (task == null)
+			{
+				task = newTask;
+				task.run();
+			}
 		}
-		else
+
+		try
+		{
+			return (EntityMapping<T>) task.get();
+		}
+		catch (ExecutionException e)
+		{
+			// Failed mappings are not cached so a later call can retry
+			mapperCache.remove(entityClass, task);
+
+			if (e.getCause() instanceof AnormousException)
+				throw (AnormousException) e.getCause();
+
+			throw new AnormousException("Error mapping class " + entityClass.getName(), e.getCause());
+		}
+		catch (InterruptedException e)
 		{
-			if (entityClass.isAnonymousClass() || entityClass.isArray() || entityClass.isEnum() || entityClass.isAnnotation() || entityClass.isLocalClass())
-				throw new InvalidClassTypeException("Class [" + entityClass.getName() + "] can not be persisted. It may be because the class is one of anonymous class, array, enum, local or annotation.");
+			Thread.currentThread().interrupt();
+
+			throw new AnormousException("Interrupted while waiting for the mapping of class " + entityClass.getName(), e);
+		}
+	}
 
-			EntityMapping<T> mapping = new EntityMapping<T>();
+	private <T> EntityMapping<T> createMapping(Class<T> entityClass) throws AnormousException
+	{
+		MappingSnapshot snapshot = AnormousConfig.initialize().getMappingSnapshot();
+		EntityMapping<T> mapping = snapshot != null ? snapshot.restore(entityClass) : null;
 
-			mapping.setEntityClass(entityClass);
-			mapping.setMappedTableName(generateTableNameFromClass(entityClass));
+		if (mapping == null)
+		{
+			mapping = introspectMapping(entityClass);
 
-			Map<String, Property> properties = getAllPropertiesForClass(entityClass);
+			if (snapshot != null)
+				snapshot.record(mapping);
+		}
 
-			IdColumnMapping potentialId = null;
+		EntityAccessor<T> accessor = findGeneratedAccessor(entityClass);
 
-			for (String propertyName : properties.keySet())
+		if (accessor != null)
+		{
+			mapping.setAccessor(accessor);
+		}
+		else if (AnormousConfig.initialize().getAccessorStrategy() == AccessorStrategy.CACHED_REFLECTION)
+		{
+			ReflectiveEntityAccessor<T> reflectiveAccessor = new ReflectiveEntityAccessor<T>(entityClass, new ArrayList<Property>(mapping.getMappedColumns().keySet()));
+
+			if (reflectiveAccessor.canInstantiate())
+				mapping.setAccessor(reflectiveAccessor);
+
+			accessor = reflectiveAccessor;
+		}
+
+		if (accessor != null)
+		{
+			for (Property property : mapping.getMappedColumns().keySet())
 			{
-				Property property = properties.get(propertyName);
-				boolean isIdMapping = false;
+				int index = accessor.indexOf(property.getName());
 
-				Column columnAnnotation = property.getColumnAnnotation();
-				IdentityColumn idAnnotation = property.getIdAnnotation();
-				Association associationAnnotation = property.getAssociationAnnotation();
+				if (index >= 0)
+					property.setAccessor(accessor, index);
+				else
+					Logger.w(TAG, "Generated accessor for " + entityClass.getName() + " does not know property " + property.getName() + ", using reflection for it");
+			}
+		}
 
-				ColumnMapping columnMapping = new ColumnMapping();
+		for (ColumnMapping columnMapping : mapping.getMappedColumns().values())
+		{
+			columnMapping.setReader(createColumnReader(columnMapping));
+		}
 
-				columnMapping.setProperty(property);
-				columnMapping.setJavaType(property.getType());
+		mapping.freeze();
 
-				String columnName = generateColumnNameFromProprety(propertyName);
-				String columnSize = "";
-				String defaultValue = "";
-				String columnType = resolveSQLType(property);
+		return mapping;
+	}
 
-				if (idAnnotation != null)
-				{
-					if (idAnnotation.value() != null && idAnnotation.value().length() > 0)
-					{
-						columnName = idAnnotation.value();
-					}
+	private <T> EntityMapping<T> introspectMapping(Class<T> entityClass) throws AnormousException
+	{
+		if (entityClass.isAnonymousClass() || entityClass.isArray() || entityClass.isEnum() || entityClass.isAnnotation() || entityClass.isLocalClass())
+			throw new InvalidClassTypeException("Class [" + entityClass.getName() + "] can not be persisted. It may be because the class is one of anonymous class, array, enum, local or annotation.");
 
-					if (idAnnotation.size() != null && idAnnotation.size().length() > 0)
-						columnSize = idAnnotation.size();
+		EntityMapping<T> mapping = new EntityMapping<T>();
 
-					if (idAnnotation.defaultValue() != null && idAnnotation.defaultValue().length() > 0)
-						defaultValue = idAnnotation.defaultValue();
+		mapping.setEntityClass(entityClass);
+		mapping.setMappedTableName(generateTableNameFromClass(entityClass));
 
-					if (idAnnotation.dataType() != null && idAnnotation.dataType().length() > 0)
-						columnType = idAnnotation.dataType();
+		Map<String, Property> properties = getAllPropertiesForClass(entityClass);
 
-					isIdMapping = true;
-				}
-				else if (columnAnnotation != null)
-				{
-					if (columnAnnotation.value() != null && columnAnnotation.value().length() > 0)
-					{
-						columnName = columnAnnotation.value();
-					}
+		IdColumnMapping potentialId = null;
 
-					if (columnAnnotation.size() != null && columnAnnotation.size().length() > 0)
-						columnSize = columnAnnotation.size();
+		for (String propertyName : properties.keySet())
+		{
+			Property property = properties.get(propertyName);
+			boolean isIdMapping = false;
 
-					if (columnAnnotation.defaultValue() != null && columnAnnotation.defaultValue().length() > 0)
-						defaultValue = columnAnnotation.defaultValue();
+			Column columnAnnotation = property.getColumnAnnotation();
+			IdentityColumn idAnnotation = property.getIdAnnotation();
+			Association associationAnnotation = property.getAssociationAnnotation();
 
-					if (columnAnnotation.dataType() != null && columnAnnotation.dataType().length() > 0)
-						columnType = columnAnnotation.dataType();
-				}
-				else if (associationAnnotation != null)
-				{
-					if (associationAnnotation.value() != null && associationAnnotation.value().length() > 0)
-					{
-						columnName = associationAnnotation.value();
-					}
+			ColumnMapping columnMapping = new ColumnMapping();
 
-					@SuppressWarnings("unused")
-					Class<?> associativeClass = associationAnnotation.associativeClass();
-					@SuppressWarnings("unused")
-					AssociationType type = associationAnnotation.type();
-				}
+			columnMapping.setProperty(property);
+			columnMapping.setJavaType(property.getType());
 
-				columnMapping.setColumnName(columnName);
-				columnMapping.setColumnSize(columnSize);
-				columnMapping.setDefaultValue(defaultValue);
-				columnMapping.setColumnType(columnType);
+			String columnName = generateColumnNameFromProprety(propertyName);
+			String columnSize = "";
+			String defaultValue = "";
+			String columnType = resolveSQLType(property);
 
-				if (isIdMapping && mapping.getIdMapping() == null)
+			if (idAnnotation != null)
+			{
+				if (idAnnotation.value() != null && idAnnotation.value().length() > 0)
 				{
-					IdColumnMapping idColumnMapping = new IdColumnMapping(idAnnotation.enforce(), idAnnotation.reuse(), columnMapping);
-
-					mapping.setIdMapping(idColumnMapping);
-					mapping.setColumnMapping(property, idColumnMapping);
+					columnName = idAnnotation.value();
 				}
-				else if (propertyName.equals("id"))
+
+				if (idAnnotation.size() != null && idAnnotation.size().length() > 0)
+					columnSize = idAnnotation.size();
+
+				if (idAnnotation.defaultValue() != null && idAnnotation.defaultValue().length() > 0)
+					defaultValue = idAnnotation.defaultValue();
+
+				if (idAnnotation.dataType() != null && idAnnotation.dataType().length() > 0)
+					columnType = idAnnotation.dataType();
+
+				isIdMapping = true;
+			}
+			else if (columnAnnotation != null)
+			{
+				if (columnAnnotation.value() != null && columnAnnotation.value().length() > 0)
 				{
-					potentialId = new IdColumnMapping(columnMapping);
+					columnName = columnAnnotation.value();
 				}
-				else
+
+				if (columnAnnotation.size() != null && columnAnnotation.size().length() > 0)
+					columnSize = columnAnnotation.size();
+
+				if (columnAnnotation.defaultValue() != null && columnAnnotation.defaultValue().length() > 0)
+					defaultValue = columnAnnotation.defaultValue();
+
+				if (columnAnnotation.dataType() != null && columnAnnotation.dataType().length() > 0)
+					columnType = columnAnnotation.dataType();
+			}
+			else if (associationAnnotation != null)
+			{
+				if (associationAnnotation.value() != null && associationAnnotation.value().length() > 0)
 				{
-					mapping.setColumnMapping(property, columnMapping);
+					columnName = associationAnnotation.value();
 				}
+
+				@SuppressWarnings("unused")
+				Class<?> associativeClass = associationAnnotation.associativeClass();
+				@SuppressWarnings("unused")
+				AssociationType type = associationAnnotation.type();
 			}
 
-			if (potentialId != null && mapping.getIdMapping() == null)
+			columnMapping.setColumnName(columnName);
+			columnMapping.setColumnSize(columnSize);
+			columnMapping.setDefaultValue(defaultValue);
+			columnMapping.setColumnType(columnType);
+
+			if (isIdMapping && mapping.getIdMapping() == null)
 			{
-				mapping.setIdMapping(potentialId);
-				mapping.setColumnMapping(potentialId.getProperty(), potentialId);
+				IdColumnMapping idColumnMapping = new IdColumnMapping(idAnnotation.enforce(), idAnnotation.reuse(), columnMapping);
+
+				mapping.setIdMapping(idColumnMapping);
+				mapping.setColumnMapping(property, idColumnMapping);
 			}
+			else if (propertyName.equals("id"))
+			{
+				potentialId = new IdColumnMapping(columnMapping);
+			}
+			else
+			{
+				mapping.setColumnMapping(property, columnMapping);
+			}
+		}
+
+		if (potentialId != null && mapping.getIdMapping() == null)
+		{
+			mapping.setIdMapping(potentialId);
+			mapping.setColumnMapping(potentialId.getProperty(), potentialId);
+		}
+
+		return mapping;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> EntityAccessor<T> findGeneratedAccessor(Class<T> entityClass)
+	{
+		String accessorName = entityClass.getName().replace('$', '_') + EntityAccessor.CLASS_SUFFIX;
 
-			mapperCache.put(entityClass, mapping);
+		try
+		{
+			Class<?> accessorClass = Class.forName(accessorName, true, entityClass.getClassLoader());
 
-			return mapping;
+			return (EntityAccessor<T>) accessorClass.newInstance();
+		}
+		catch (ClassNotFoundException e)
+		{
+			// Not processed at compile time, reflection it is
+		}
+		catch (InstantiationException e)
+		{
+			Logger.w(TAG, "Can not instantiate generated accessor : " + accessorName, e);
+		}
+		catch (IllegalAccessException e)
+		{
+			Logger.w(TAG, "Can not instantiate generated accessor : " + accessorName, e);
+		}
+		catch (ClassCastException e)
+		{
+			Logger.w(TAG, "Generated accessor " + accessorName + " is not an EntityAccessor", e);
 		}
+
+		return null;
 	}
 
 	private Map<String, Property> getAllPropertiesForClass(Class<?> entityClass)
@@ -279,8 +477,10 @@ public class DefaultEntityMapper implements IEntityMapper
 		StringBuffer sql = new StringBuffer("CREATE TABLE " + mapping.getMappedTableName() + " ( ");
 		boolean first = true;
 
-		for (ColumnMapping columnMapping : mapping.getMappedColumns().values())
+		for (int i = 0; i < mapping.getColumnCount(); i++)
 		{
+			ColumnMapping columnMapping = mapping.getColumn(i);
+
 			if (!first)
 				sql.append(",");
 
@@ -294,6 +494,214 @@ public class DefaultEntityMapper implements IEntityMapper
 		return sql.toString();
 	}
 
+	@Override
+	public String generateAddColumnStatement(Class<?> entityClass, String columnName) throws AnormousException
+	{
+		EntityMapping<?> mapping = mapClass(entityClass);
+
+		for (int i = 0; i < mapping.getColumnCount(); i++)
+		{
+			ColumnMapping columnMapping = mapping.getColumn(i);
+
+			if (columnMapping.getColumnName().equalsIgnoreCase(columnName))
+			{
+				// SQLite can not add a primary key to an existing table
+				if (columnMapping instanceof IdColumnMapping)
+					throw new AnormousException("Id column " + columnName + " can not be added to the existing table " + mapping.getMappedTableName());
+
+				return "ALTER TABLE " + mapping.getMappedTableName() + " ADD COLUMN " + generateColumnDeclaration(columnMapping) + ";";
+			}
+		}
+
+		throw new AnormousException("Column " + columnName + " is not mapped for the entity : " + entityClass);
+	}
+
+	@Override
+	public Map<String, String> generateCreateIndexStatements(Class<?> entityClass) throws AnormousException
+	{
+		EntityMapping<?> mapping = mapClass(entityClass);
+		Map<String, String> statements = new LinkedHashMap<String, String>();
+		List<Index> indexes = new ArrayList<Index>();
+
+		if (entityClass.getAnnotation(Index.class) != null)
+			indexes.add(entityClass.getAnnotation(Index.class));
+
+		if (entityClass.getAnnotation(Indexes.class) != null)
+			indexes.addAll(Arrays.asList(entityClass.getAnnotation(Indexes.class).value()));
+
+		for (Index index : indexes)
+		{
+			if (index.value().length == 0)
+				throw new AnormousException("Index on entity " + entityClass + " has no columns");
+
+			StringBuffer columns = new StringBuffer();
+			StringBuffer defaultName = new StringBuffer("idx_" + mapping.getMappedTableName());
+
+			for (String indexed : index.value())
+			{
+				String[] parts = indexed.trim().split("\\s+");
+				ColumnMapping columnMapping = null;
+
+				for (int i = 0; i < mapping.getColumnCount(); i++)
+				{
+					if (mapping.getColumn(i).getProperty().getName().equals(parts[0]) || mapping.getColumn(i).getColumnName().equalsIgnoreCase(parts[0]))
+						columnMapping = mapping.getColumn(i);
+				}
+
+				if (columnMapping == null)
+					throw new AnormousException("Indexed property " + parts[0] + " is not mapped for the entity : " + entityClass);
+
+				if (columns.length() > 0)
+					columns.append(", ");
+
+				columns.append(columnMapping.getColumnName());
+				defaultName.append("_").append(columnMapping.getColumnName());
+
+				if (parts.length > 1)
+					columns.append(" ").append(parts[1].toUpperCase(Locale.US));
+			}
+
+			String name = index.name().length() > 0 ? index.name() : defaultName.toString();
+
+			StringBuffer sql = new StringBuffer(index.unique() ? "CREATE UNIQUE INDEX " : "CREATE INDEX ");
+
+			sql.append(name).append(" ON ").append(mapping.getMappedTableName()).append(" (").append(columns).append(")");
+
+			if (index.where().length() > 0)
+				sql.append(" WHERE ").append(forwardMapColumnNames(index.where(), entityClass));
+
+			sql.append(";");
+
+			statements.put(name, sql.toString());
+		}
+
+		return statements;
+	}
+
+	@Override
+	public String generateInsertStatement(Class<?> entityClass) throws AnormousException
+	{
+		EntityMapping<?> mapping = mapClass(entityClass);
+
+		StringBuffer sql = new StringBuffer("INSERT INTO " + mapping.getMappedTableName() + " (");
+		StringBuffer values = new StringBuffer(" VALUES (");
+		boolean first = true;
+
+		for (int i = 0; i < mapping.getColumnCount(); i++)
+		{
+			ColumnMapping columnMapping = mapping.getColumn(i);
+
+			if (!first)
+			{
+				sql.append(",");
+				values.append(",");
+			}
+
+			sql.append(columnMapping.getColumnName());
+			values.append("?");
+
+			first = false;
+		}
+
+		sql.append(")");
+		sql.append(values);
+		sql.append(");");
+
+		return sql.toString();
+	}
+
+	@Override
+	public String generateUpsertStatement(Class<?> entityClass) throws AnormousException
+	{
+		EntityMapping<?> mapping = mapClass(entityClass);
+
+		if (mapping.getIdMapping() == null)
+			throw new AnormousException("Can not generate upsert statement, can not find an id mapping for the entity : " + entityClass);
+
+		String insert = generateInsertStatement(entityClass);
+
+		StringBuffer sql = new StringBuffer(insert.substring(0, insert.length() - 1));
+		sql.append(" ON CONFLICT(" + mapping.getIdMapping().getColumnName() + ") DO ");
+
+		StringBuffer assignments = new StringBuffer();
+
+		for (int i = 0; i < mapping.getColumnCount(); i++)
+		{
+			ColumnMapping columnMapping = mapping.getColumn(i);
+
+			if (columnMapping instanceof IdColumnMapping)
+				continue;
+
+			if (assignments.length() > 0)
+				assignments.append(",");
+
+			assignments.append(columnMapping.getColumnName() + " = excluded." + columnMapping.getColumnName());
+		}
+
+		sql.append(assignments.length() > 0 ? "UPDATE SET " + assignments : "NOTHING");
+		sql.append(";");
+
+		return sql.toString();
+	}
+
+	@Override
+	public String generateUpdateStatement(Class<?> entityClass, String whereClause) throws AnormousException
+	{
+		EntityMapping<?> mapping = mapClass(entityClass);
+
+		StringBuffer sql = new StringBuffer("UPDATE " + mapping.getMappedTableName() + " SET ");
+		boolean first = true;
+
+		for (int i = 0; i < mapping.getColumnCount(); i++)
+		{
+			ColumnMapping columnMapping = mapping.getColumn(i);
+
+			if (!first)
+				sql.append(",");
+
+			sql.append(columnMapping.getColumnName() + " = ?");
+
+			first = false;
+		}
+
+		if (whereClause != null && whereClause.length() > 0)
+			sql.append(" WHERE " + whereClause);
+
+		sql.append(";");
+
+		return sql.toString();
+	}
+
+	@Override
+	public String generateDeleteStatement(Class<?> entityClass, String whereClause) throws AnormousException
+	{
+		EntityMapping<?> mapping = mapClass(entityClass);
+
+		StringBuffer sql = new StringBuffer("DELETE FROM " + mapping.getMappedTableName());
+
+		if (whereClause != null && whereClause.length() > 0)
+			sql.append(" WHERE " + whereClause);
+
+		sql.append(";");
+
+		return sql.toString();
+	}
+
+	@Override
+	public void bindToStatement(SQLiteProgram statement, Object bean) throws AnormousException
+	{
+		EntityMapping<?> mapping = mapClass(bean.getClass());
+
+		int index = 1;
+
+		for (int i = 0; i < mapping.getColumnCount(); i++)
+		{
+			ColumnMapping columnMapping = mapping.getColumn(i);
+
+			resolveTypeAndBindFromBean(statement, index++, columnMapping, bean);
+		}
+	}
+
 	private String generateColumnDeclaration(ColumnMapping columnMapping)
 	{
 		StringBuffer columnSql = new StringBuffer();
@@ -377,6 +785,44 @@ public class DefaultEntityMapper implements IEntityMapper
 		return null;
 	}
 
+	@Override
+	public <T> QueryPlan<T> compileQueryPlan(Class<T> entityClass, boolean distinct, String whereClause, String groupBy, String having, String orderBy) throws AnormousException
+	{
+		EntityMapping<T> mapping = mapClass(entityClass);
+
+		ColumnMapping[] columnMappings = mapping.getColumns();
+
+		return new QueryPlan<T>(mapping, distinct, columnMappings, forwardMapColumnNames(whereClause, entityClass), forwardMapColumnNames(groupBy, entityClass), forwardMapColumnNames(having, entityClass), forwardMapColumnNames(orderBy, entityClass));
+	}
+
+	@Override
+	public <T> T valuesToBean(Cursor cursor, QueryPlan<T> plan) throws AnormousException
+	{
+		try
+		{
+			T bean = plan.newInstance();
+
+			int columnCount = plan.getColumnCount();
+
+			for (int i = 0; i < columnCount; i++)
+			{
+				readColumn(cursor, i, plan.getColumnMapping(i), plan.getReader(i), bean);
+			}
+
+			return bean;
+		}
+		catch (InstantiationException e)
+		{
+			Logger.w(TAG, "Error mapping db result to to bean", e);
+		}
+		catch (IllegalAccessException e)
+		{
+			Logger.w(TAG, "Error mapping db result to bean", e);
+		}
+
+		return null;
+	}
+
 	@Override
 	public <T> T valuesToBean(Cursor cursor, Class<T> entityClass) throws AnormousException
 	{
@@ -384,17 +830,15 @@ public class DefaultEntityMapper implements IEntityMapper
 
 		try
 		{
-			bean = entityClass.newInstance();
-
 			EntityMapping<T> mapping = mapClass(entityClass);
 
-			Map<Property, ColumnMapping> columnMappings = mapping.getMappedColumns();
+			bean = mapping.newInstance();
 
-			for (Property property : columnMappings.keySet())
+			for (int i = 0; i < mapping.getColumnCount(); i++)
 			{
-				ColumnMapping columnMapping = columnMappings.get(property);
+				ColumnMapping columnMapping = mapping.getColumn(i);
 
-				resolveTypeAndSetToBean(cursor, columnMapping, bean);
+				readColumn(cursor, cursor.getColumnIndex(columnMapping.getColumnName()), columnMapping, columnMapping.getReader(), bean);
 			}
 
 			Logger.d(TAG, "Bean loaded: " + bean);
@@ -420,103 +864,300 @@ public class DefaultEntityMapper implements IEntityMapper
 
 		EntityMapping<?> mapping = mapClass(bean.getClass());
 
-		Map<Property, ColumnMapping> columnMappings = mapping.getMappedColumns();
-
-		for (Property property : columnMappings.keySet())
+		for (int i = 0; i < mapping.getColumnCount(); i++)
 		{
-			ColumnMapping columnMapping = columnMappings.get(property);
-
-			resolveTypeAndGetFromBean(contentValues, columnMapping, bean);
+			resolveTypeAndGetFromBean(contentValues, mapping.getColumn(i), bean);
 		}
 
 		return contentValues;
 	}
 
-	private void resolveTypeAndSetToBean(Cursor cursor, ColumnMapping columnMapping, Object bean)
+	private void readColumn(Cursor cursor, int index, ColumnMapping columnMapping, ColumnReader reader, Object bean)
 	{
 		try
 		{
-			Property property = columnMapping.getProperty();
-			int index = cursor.getColumnIndex(columnMapping.getColumnName());
+			reader.read(cursor, index, bean);
+		}
+		catch (IllegalArgumentException e)
+		{
+			Logger.d(TAG, "Error getting value for column mapping : " + columnMapping, e);
+		}
+		catch (IllegalAccessException e)
+		{
+			Logger.d(TAG, "Error getting value for column mapping : " + columnMapping, e);
+		}
+		catch (InvocationTargetException e)
+		{
+			Logger.d(TAG, "Can not resolve setter for mapping : " + columnMapping, e);
+		}
+		catch (SecurityException e)
+		{
+			Logger.w(TAG, "Can not resolve setter for mapping : " + columnMapping, e);
+		}
+		catch (Exception e)
+		{
+			Logger.w(TAG, "Error reading column for mapping : " + columnMapping, e);
+		}
+	}
+
+	private ColumnReader createColumnReader(final ColumnMapping columnMapping)
+	{
+		final Property property = columnMapping.getProperty();
+		final Class<?> type = property.getType();
+
+		// Numeric columns are read with the cursor's native getters and
+		// written without boxing where the property is a primitive field
+		if (type.equals(byte[].class))
+		{
+			return new TypedColumnReader(property)
+			{
+				@Override
+				protected void readValue(Cursor cursor, int index, Object bean) throws Exception
+				{
+					property.setValueTo(bean, cursor.getBlob(index));
+				}
+			};
+		}
+		else if (type.equals(Date.class))
+		{
+			return new TypedColumnReader(property)
+			{
+				@Override
+				protected void readValue(Cursor cursor, int index, Object bean) throws Exception
+				{
+					long value = cursor.getLong(index);
 
-			if (property.getType().equals(byte[].class))
+					if (value != 0 || isNumericZero(cursor, index, bean))
+						property.setValueTo(bean, new Date(value));
+				}
+			};
+		}
+		else if (type.equals(Double.class) || type.equals(Double.TYPE))
+		{
+			return new TypedColumnReader(property)
 			{
-				// BLOB TYPES
-				property.setValueTo(bean, cursor.isNull(index) ? null : cursor.getBlob(index));
-			}
-			else
+				@Override
+				protected void readValue(Cursor cursor, int index, Object bean) throws Exception
+				{
+					double value = cursor.getDouble(index);
+
+					if (value != 0 || isNumericZero(cursor, index, bean))
+						property.setDoubleTo(bean, value);
+				}
+			};
+		}
+		else if (type.equals(Float.class) || type.equals(Float.TYPE))
+		{
+			return new TypedColumnReader(property)
 			{
-				// TYPES STORED AS STRING
-				String value = cursor.isNull(index) ? null : cursor.getString(index);
+				@Override
+				protected void readValue(Cursor cursor, int index, Object bean) throws Exception
+				{
+					float value = cursor.getFloat(index);
 
-				Logger.d(TAG, "Setting value " + value + " for " + columnMapping.getColumnName());
+					if (value != 0 || isNumericZero(cursor, index, bean))
+						property.setFloatTo(bean, value);
+				}
+			};
+		}
+		else if (type.equals(Long.class) || type.equals(Long.TYPE))
+		{
+			return new TypedColumnReader(property)
+			{
+				@Override
+				protected void readValue(Cursor cursor, int index, Object bean) throws Exception
+				{
+					long value = cursor.getLong(index);
 
-				if (value != null && (property.getType().equals(String.class) || value.length() > 0) && !value.equals("null"))
+					if (value != 0 || isNumericZero(cursor, index, bean))
+						property.setLongTo(bean, value);
+				}
+			};
+		}
+		else if (type.equals(Integer.class) || type.equals(Integer.TYPE))
+		{
+			return new TypedColumnReader(property)
+			{
+				@Override
+				protected void readValue(Cursor cursor, int index, Object bean) throws Exception
 				{
-					if (property.getType().equals(Boolean.class) || property.getType().equals(Boolean.TYPE))
-					{
-						property.setValueTo(bean, "1".equals(value) || "true".equals(value));
-					}
-					else if (property.getType().equals(Date.class))
-					{
-						property.setValueTo(bean, new Date(new Long(value)));
-					}
-					else if (property.getType().equals(String.class))
-					{
-						property.setValueTo(bean, value);
-					}
-					else if (property.getType().equals(Double.class) || property.getType().equals(Double.TYPE))
-					{
-						property.setValueTo(bean, new Double(value));
-					}
-					else if (property.getType().equals(Float.class) || property.getType().equals(Float.TYPE))
-					{
-						property.setValueTo(bean, new Float(value));
-					}
-					else if (property.getType().equals(Long.class) || property.getType().equals(Long.TYPE))
-					{
-						property.setValueTo(bean, new Long(value));
-					}
-					else if (property.getType().equals(Integer.class) || property.getType().equals(Integer.TYPE))
-					{
-						property.setValueTo(bean, new Integer(value));
-					}
-					else if (property.getType().equals(Short.class) || property.getType().equals(Short.TYPE))
-					{
-						property.setValueTo(bean, new Short(value));
-					}
-					else if (property.getType().equals(Byte.class) || property.getType().equals(Byte.TYPE))
-					{
-						property.setValueTo(bean, new Byte(value));
-					}
-					else
-					{
-						Logger.i(TAG, "Couldn't match type for value: " + value + ", type: " + property.getType());
-					}
+					int value = cursor.getInt(index);
+
+					if (value != 0 || isNumericZero(cursor, index, bean))
+						property.setIntTo(bean, value);
 				}
-				else
+			};
+		}
+		else if (type.equals(Short.class) || type.equals(Short.TYPE))
+		{
+			return new TypedColumnReader(property)
+			{
+				@Override
+				protected void readValue(Cursor cursor, int index, Object bean) throws Exception
 				{
-					property.setValueTo(bean, null);
+					short value = cursor.getShort(index);
+
+					if (value != 0 || isNumericZero(cursor, index, bean))
+						property.setShortTo(bean, value);
+				}
+			};
+		}
+		else if (type.equals(Byte.class) || type.equals(Byte.TYPE))
+		{
+			return new TypedColumnReader(property)
+			{
+				@Override
+				protected void readValue(Cursor cursor, int index, Object bean) throws Exception
+				{
+					byte value = (byte) cursor.getInt(index);
+
+					if (value != 0 || isNumericZero(cursor, index, bean))
+						property.setByteTo(bean, value);
+				}
+			};
+		}
 
-					Logger.i(TAG, "Null value: " + value + ", type: " + property.getType());
+		// TYPES STORED AS STRING
+		if (type.equals(Boolean.class) || type.equals(Boolean.TYPE))
+		{
+			// Read as text since older databases may hold 'true' as well as 1
+			return new StringColumnReader(columnMapping)
+			{
+				@Override
+				protected Object convert(String value)
+				{
+					return "1".equals(value) || "true".equals(value);
+				}
+			};
+		}
+		else if (type.equals(String.class))
+		{
+			return new StringColumnReader(columnMapping)
+			{
+				@Override
+				protected Object convert(String value)
+				{
+					return value;
 				}
+			};
+		}
+		else
+		{
+			return new StringColumnReader(columnMapping)
+			{
+				@Override
+				protected Object convert(String value)
+				{
+					Logger.i(TAG, "Couldn't match type for value: " + value + ", type: " + type);
+
+					return null;
+				}
+
+				@Override
+				public void read(Cursor cursor, int index, Object bean) throws Exception
+				{
+					String value = cursor.isNull(index) ? null : cursor.getString(index);
+
+					if (isPresent(value))
+						convert(value);
+					else
+						super.read(cursor, index, bean);
+				}
+			};
+		}
+	}
+
+	private abstract static class TypedColumnReader implements ColumnReader
+	{
+		protected final Property property;
+		private final boolean primitive;
+
+		TypedColumnReader(Property property)
+		{
+			this.property = property;
+			this.primitive = property.getType().isPrimitive();
+		}
+
+		protected abstract void readValue(Cursor cursor, int index, Object bean) throws Exception;
+
+		/**
+		 * SQLite reads text that is not a number as 0, so only a zero has its
+		 * text looked at: '' and 'null' set null as they always did, and other
+		 * text that is not a number leaves the property alone. Returns true
+		 * when the column really holds a zero.
+		 */
+		protected boolean isNumericZero(Cursor cursor, int index, Object bean) throws Exception
+		{
+			String text = cursor.getString(index);
+
+			if (text == null || text.length() == 0 || text.equals("null"))
+			{
+				if (!primitive)
+					property.setValueTo(bean, null);
+
+				return false;
+			}
+
+			try
+			{
+				Double.parseDouble(text.trim());
+
+				return true;
+			}
+			catch (NumberFormatException e)
+			{
+				Logger.d(TAG, "Not a number : " + text + ", type: " + property.getType());
+
+				return false;
 			}
 		}
-		catch (IllegalArgumentException e)
+
+		@Override
+		public void read(Cursor cursor, int index, Object bean) throws Exception
 		{
-			Logger.d(TAG, "Error getting value for column mapping : " + columnMapping, e);
+			if (!cursor.isNull(index))
+			{
+				readValue(cursor, index, bean);
+			}
+			else if (!primitive)
+			{
+				// Primitives keep their default value for NULL columns
+				property.setValueTo(bean, null);
+			}
 		}
-		catch (IllegalAccessException e)
+	}
+
+	private abstract static class StringColumnReader implements ColumnReader
+	{
+		private final Property property;
+		private final boolean stringType;
+
+		StringColumnReader(ColumnMapping columnMapping)
 		{
-			Logger.d(TAG, "Error getting value for column mapping : " + columnMapping, e);
+			this.property = columnMapping.getProperty();
+			this.stringType = property.getType().equals(String.class);
 		}
-		catch (InvocationTargetException e)
+
+		protected abstract Object convert(String value);
+
+		protected boolean isPresent(String value)
 		{
-			Logger.d(TAG, "Can not resolve setter for mapping : " + columnMapping, e);
+			return value != null && (stringType || value.length() > 0) && !value.equals("null");
 		}
-		catch (SecurityException e)
+
+		@Override
+		public void read(Cursor cursor, int index, Object bean) throws Exception
 		{
-			Logger.w(TAG, "Can not resolve setter for mapping : " + columnMapping, e);
+			String value = cursor.isNull(index) ? null : cursor.getString(index);
+
+			if (isPresent(value))
+			{
+				property.setValueTo(bean, convert(value));
+			}
+			else if (!property.getType().isPrimitive())
+			{
+				property.setValueTo(bean, null);
+			}
 		}
 	}
 
@@ -594,6 +1235,90 @@ public class DefaultEntityMapper implements IEntityMapper
 		}
 	}
 
+	private void resolveTypeAndBindFromBean(SQLiteProgram statement, int index, ColumnMapping columnMapping, Object bean) throws AnormousException
+	{
+		try
+		{
+			Object value = columnMapping.getProperty().getValueFrom(bean);
+
+			if (value == null)
+			{
+				statement.bindNull(index);
+			}
+			else if (value instanceof Boolean)
+			{
+				statement.bindLong(index, ((Boolean) value) ? 1 : 0);
+			}
+			else if (value instanceof Date)
+			{
+				statement.bindLong(index, ((Date) value).getTime());
+			}
+			else if (value instanceof String)
+			{
+				statement.bindString(index, (String) value);
+			}
+			else if (value instanceof Double || value instanceof Float)
+			{
+				statement.bindDouble(index, ((Number) value).doubleValue());
+			}
+			else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+			{
+				statement.bindLong(index, ((Number) value).longValue());
+			}
+			else if (value instanceof byte[])
+			{
+				statement.bindBlob(index, (byte[]) value);
+			}
+			else
+			{
+				statement.bindString(index, value.toString());
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new AnormousException("Error getting value for column mapping : " + columnMapping, e);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new AnormousException("Error getting value for column mapping : " + columnMapping, e);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw new AnormousException("Error getting value for column mapping : " + columnMapping, e);
+		}
+	}
+
+	private static class TranslationKey
+	{
+		private final Class<?> entityClass;
+		private final String query;
+		private final int hash;
+
+		TranslationKey(Class<?> entityClass, String query)
+		{
+			this.entityClass = entityClass;
+			this.query = query;
+			this.hash = 31 * entityClass.hashCode() + query.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof TranslationKey))
+				return false;
+
+			TranslationKey other = (TranslationKey) o;
+
+			return entityClass == other.entityClass && query.equals(other.query);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+	}
+
 	public String generateTableNameFromClass(Class<?> entityClass)
 	{
 		String returnValue = null;
@@ -0,0 +1,25 @@
+package com.anormous.mapper;
+
+/**
+ * Direct, reflection free access to the properties of one entity class.
+ * Implementations are generated at compile time by the Anormous annotation
+ * processor as <code>&lt;EntityClass&gt;_AnormousAccessor</code> in the
+ * entity's package, {@link DefaultEntityMapper} picks them up automatically
+ * and falls back to reflection for classes that were not processed.
+ */
+public interface EntityAccessor<T>
+{
+	public final static String CLASS_SUFFIX = "_AnormousAccessor";
+
+	T newInstance();
+
+	/**
+	 * Index of the named property, to be passed to {@link #get} and
+	 * {@link #set}, or -1 when this accessor does not know the property.
+	 */
+	int indexOf(String propertyName);
+
+	Object get(T bean, int propertyIndex);
+
+	void set(T bean, int propertyIndex, Object value);
+}
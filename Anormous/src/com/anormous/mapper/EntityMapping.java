@@ -4,7 +4,9 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.HashMap;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import com.anormous.annotation.Column;
@@ -16,8 +18,15 @@ public class EntityMapping<T>
 	private Class<T> entityClass;
 	private String mappedTableName;
 	private IdColumnMapping idMapping;
-	private boolean tableExists;
-	private Map<Property, ColumnMapping> mappedColumns = new HashMap<Property, ColumnMapping>();
+	private volatile boolean tableExists;
+	private volatile Boolean rowIdAlias;
+	private Map<Property, ColumnMapping> mappedColumns = new LinkedHashMap<Property, ColumnMapping>();
+	private EntityAccessor<T> accessor;
+
+	// Filled in by freeze(), after which the column layout can not change
+	private ColumnMapping[] columns;
+	private Map<Property, ColumnMapping> frozenColumns;
+	private int idOrdinal = -1;
 
 	public boolean isTableExists()
 	{
@@ -29,6 +38,20 @@ public class EntityMapping<T>
 		this.tableExists = tableExists;
 	}
 
+	/**
+	 * Whether the id column of the actual table is a rowid alias, null until
+	 * the table was looked at.
+	 */
+	public Boolean getRowIdAlias()
+	{
+		return rowIdAlias;
+	}
+
+	public void setRowIdAlias(Boolean rowIdAlias)
+	{
+		this.rowIdAlias = rowIdAlias;
+	}
+
 	public IdColumnMapping getIdMapping()
 	{
 		return idMapping;
@@ -36,12 +59,78 @@ public class EntityMapping<T>
 
 	public void setIdMapping(IdColumnMapping idMapping)
 	{
+		checkNotFrozen();
+
 		this.idMapping = idMapping;
 	}
 
 	public Map<Property, ColumnMapping> getMappedColumns()
 	{
-		return new HashMap<Property, ColumnMapping>(mappedColumns);
+		if (frozenColumns != null)
+			return frozenColumns;
+
+		return new LinkedHashMap<Property, ColumnMapping>(mappedColumns);
+	}
+
+	/**
+	 * Fixes the column layout: every column gets its ordinal, the position
+	 * at which it appears in statements and projections, and the mapping can
+	 * no longer be changed. Called by the mapper once the mapping is built.
+	 */
+	public void freeze()
+	{
+		if (isFrozen())
+			return;
+
+		columns = mappedColumns.values().toArray(new ColumnMapping[mappedColumns.size()]);
+
+		for (int i = 0; i < columns.length; i++)
+		{
+			columns[i].setOrdinal(i);
+
+			if (columns[i] == idMapping)
+				idOrdinal = i;
+		}
+
+		frozenColumns = Collections.unmodifiableMap(mappedColumns);
+	}
+
+	public boolean isFrozen()
+	{
+		return frozenColumns != null;
+	}
+
+	private void checkNotFrozen()
+	{
+		if (isFrozen())
+			throw new IllegalStateException("Mapping of " + entityClass + " is frozen and can not be modified");
+	}
+
+	public int getColumnCount()
+	{
+		return columns != null ? columns.length : mappedColumns.size();
+	}
+
+	/**
+	 * Column at the given ordinal, without allocating once the mapping is
+	 * frozen.
+	 */
+	public ColumnMapping getColumn(int ordinal)
+	{
+		return columns != null ? columns[ordinal] : getColumns()[ordinal];
+	}
+
+	public ColumnMapping[] getColumns()
+	{
+		return columns != null ? columns.clone() : mappedColumns.values().toArray(new ColumnMapping[mappedColumns.size()]);
+	}
+
+	/**
+	 * Ordinal of the id column, or -1 when the entity has no id mapping.
+	 */
+	public int getIdOrdinal()
+	{
+		return idOrdinal;
 	}
 
 	public Class<T> getEntityClass()
@@ -54,6 +143,21 @@ public class EntityMapping<T>
 		this.entityClass = entityClass;
 	}
 
+	public EntityAccessor<T> getAccessor()
+	{
+		return accessor;
+	}
+
+	public void setAccessor(EntityAccessor<T> accessor)
+	{
+		this.accessor = accessor;
+	}
+
+	public T newInstance() throws InstantiationException, IllegalAccessException
+	{
+		return accessor != null ? accessor.newInstance() : entityClass.newInstance();
+	}
+
 	public String getMappedTableName()
 	{
 		return mappedTableName;
@@ -66,6 +170,8 @@ public class EntityMapping<T>
 
 	public void setColumnMapping(Property property, ColumnMapping columnMapping)
 	{
+		checkNotFrozen();
+
 		mappedColumns.put(property, columnMapping);
 	}
 
@@ -93,6 +199,8 @@ public class EntityMapping<T>
 		private Method setterMethod;
 		private Field field;
 		private Class<?> type;
+		private EntityAccessor<Object> accessor;
+		private int accessorIndex = -1;
 		Column columnAnnotation;
 		IdentityColumn idAnnotation;
 		Association associationAnnotation;
@@ -201,8 +309,37 @@ public class EntityMapping<T>
 			this.setterMethod = setterMethod;
 		}
 
+		@SuppressWarnings("unchecked")
+		public void setAccessor(EntityAccessor<?> accessor, int accessorIndex)
+		{
+			this.accessor = (EntityAccessor<Object>) accessor;
+			this.accessorIndex = accessorIndex;
+		}
+
+		public boolean hasAccessor()
+		{
+			return accessor != null;
+		}
+
+		public boolean isWritable()
+		{
+			return field != null || setterMethod != null;
+		}
+
 		public Object getValueFrom(Object bean) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException
 		{
+			if (accessor != null)
+			{
+				try
+				{
+					return accessor.get(bean, accessorIndex);
+				}
+				catch (RuntimeException e)
+				{
+					throw wrap(e);
+				}
+			}
+
 			if (field != null)
 			{
 				if (!field.isAccessible())
@@ -216,7 +353,18 @@ public class EntityMapping<T>
 
 		public void setValueTo(Object bean, Object value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException
 		{
-			if (field != null)
+			if (accessor != null)
+			{
+				try
+				{
+					accessor.set(bean, accessorIndex, value);
+				}
+				catch (RuntimeException e)
+				{
+					throw wrap(e);
+				}
+			}
+			else if (field != null)
 			{
 				if (!field.isAccessible())
 					field.setAccessible(true);
@@ -227,6 +375,79 @@ public class EntityMapping<T>
 				setterMethod.invoke(bean, value);
 		}
 
+		public void setLongTo(Object bean, long value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException
+		{
+			if (field != null && type == Long.TYPE)
+				accessibleField().setLong(bean, value);
+			else
+				setValueTo(bean, Long.valueOf(value));
+		}
+
+		public void setIntTo(Object bean, int value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException
+		{
+			if (field != null && type == Integer.TYPE)
+				accessibleField().setInt(bean, value);
+			else
+				setValueTo(bean, Integer.valueOf(value));
+		}
+
+		public void setShortTo(Object bean, short value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException
+		{
+			if (field != null && type == Short.TYPE)
+				accessibleField().setShort(bean, value);
+			else
+				setValueTo(bean, Short.valueOf(value));
+		}
+
+		public void setByteTo(Object bean, byte value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException
+		{
+			if (field != null && type == Byte.TYPE)
+				accessibleField().setByte(bean, value);
+			else
+				setValueTo(bean, Byte.valueOf(value));
+		}
+
+		public void setDoubleTo(Object bean, double value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException
+		{
+			if (field != null && type == Double.TYPE)
+				accessibleField().setDouble(bean, value);
+			else
+				setValueTo(bean, Double.valueOf(value));
+		}
+
+		public void setFloatTo(Object bean, float value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException
+		{
+			if (field != null && type == Float.TYPE)
+				accessibleField().setFloat(bean, value);
+			else
+				setValueTo(bean, Float.valueOf(value));
+		}
+
+		/**
+		 * Failures of the entity's own getters and setters reach the caller in
+		 * an InvocationTargetException whether an accessor was used or not,
+		 * like they do from Method.invoke. Wrong argument types stay
+		 * IllegalArgumentExceptions.
+		 */
+		private static RuntimeException wrap(RuntimeException e) throws InvocationTargetException
+		{
+			if (e instanceof IllegalArgumentException)
+				return e;
+
+			if (e instanceof UndeclaredThrowableException)
+				throw new InvocationTargetException(e.getCause());
+
+			throw new InvocationTargetException(e);
+		}
+
+		private Field accessibleField()
+		{
+			if (!field.isAccessible())
+				field.setAccessible(true);
+
+			return field;
+		}
+
 		@Override
 		public boolean equals(Object o)
 		{
@@ -255,6 +476,8 @@ public class EntityMapping<T>
 		private String columnType;
 		private String defaultValue;
 		private String columnSize;
+		private ColumnReader reader;
+		private int ordinal = -1;
 
 		public Property getProperty()
 		{
@@ -316,6 +539,29 @@ public class EntityMapping<T>
 			this.columnSize = columnSize;
 		}
 
+		public ColumnReader getReader()
+		{
+			return reader;
+		}
+
+		public void setReader(ColumnReader reader)
+		{
+			this.reader = reader;
+		}
+
+		/**
+		 * Position of this column in the frozen mapping, -1 until then.
+		 */
+		public int getOrdinal()
+		{
+			return ordinal;
+		}
+
+		void setOrdinal(int ordinal)
+		{
+			this.ordinal = ordinal;
+		}
+
 		@Override
 		public String toString()
 		{
@@ -343,6 +589,17 @@ public class EntityMapping<T>
 			return enforce;
 		}
 
+		/**
+		 * Whether the mapper declares this id as INTEGER PRIMARY KEY, which
+		 * SQLite treats as an alias for the rowid. Tables that were not
+		 * created by the mapper may differ, see
+		 * {@link EntityMapping#getRowIdAlias()}.
+		 */
+		public boolean isRowIdAlias()
+		{
+			return getColumnType() != null && getColumnType().equalsIgnoreCase("INTEGER") && (getColumnSize() == null || getColumnSize().length() == 0);
+		}
+
 		public void setEnforce(boolean enforce)
 		{
 			this.enforce = enforce;
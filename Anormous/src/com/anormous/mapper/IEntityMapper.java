@@ -1,7 +1,10 @@
 package com.anormous.mapper;
 
+import java.util.Map;
+
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteProgram;
 
 import com.anormous.error.AnormousException;
 
@@ -13,7 +16,29 @@ public interface IEntityMapper
 
 	<T> T valuesToBean(Cursor cursor, Class<T> entityClass) throws AnormousException;
 
+	<T> QueryPlan<T> compileQueryPlan(Class<T> entityClass, boolean distinct, String whereClause, String groupBy, String having, String orderBy) throws AnormousException;
+
+	<T> T valuesToBean(Cursor cursor, QueryPlan<T> plan) throws AnormousException;
+
 	String forwardMapColumnNames(String query, Class<?> entityClass) throws AnormousException;
 
 	String generateCreateTableStatement(Class<?> entityClass) throws AnormousException;
+
+	String generateAddColumnStatement(Class<?> entityClass, String columnName) throws AnormousException;
+
+	/**
+	 * CREATE INDEX statements of the indexes declared on the entity, keyed by
+	 * index name.
+	 */
+	Map<String, String> generateCreateIndexStatements(Class<?> entityClass) throws AnormousException;
+
+	String generateInsertStatement(Class<?> entityClass) throws AnormousException;
+
+	String generateUpsertStatement(Class<?> entityClass) throws AnormousException;
+
+	String generateUpdateStatement(Class<?> entityClass, String whereClause) throws AnormousException;
+
+	String generateDeleteStatement(Class<?> entityClass, String whereClause) throws AnormousException;
+
+	void bindToStatement(SQLiteProgram statement, Object bean) throws AnormousException;
 }
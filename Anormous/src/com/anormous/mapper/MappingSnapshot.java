@@ -0,0 +1,350 @@
+package com.anormous.mapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.anormous.logger.Logger;
+import com.anormous.mapper.EntityMapping.ColumnMapping;
+import com.anormous.mapper.EntityMapping.IdColumnMapping;
+import com.anormous.mapper.EntityMapping.Property;
+
+/**
+ * Binary snapshot of resolved entity mappings, so later launches can rebuild
+ * a mapping by looking up its members by name instead of scanning the class
+ * and its annotations. The whole snapshot is tied to a schema version chosen
+ * by the application, such as its version code, and is dropped when that
+ * changes. Restoring only looks members up by name, so classes changed
+ * without a new version are not noticed unless a member is gone, in which
+ * case the entry is dropped and the class is mapped through reflection
+ * again.
+ */
+public class MappingSnapshot
+{
+	private static final String TAG = "MappingSnapshot";
+
+	private static final int MAGIC = 0x414E4D53;
+	private static final int FORMAT_VERSION = 3;
+
+	private static final byte KIND_COLUMN = 0;
+	private static final byte KIND_ID = 1;
+
+	private static final Map<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>();
+
+	static
+	{
+		for (Class<?> type : new Class<?>[] { Boolean.TYPE, Byte.TYPE, Short.TYPE, Integer.TYPE, Long.TYPE, Float.TYPE, Double.TYPE, Character.TYPE })
+		{
+			PRIMITIVES.put(type.getName(), type);
+		}
+	}
+
+	private final File file;
+	private final int schemaVersion;
+
+	private Map<String, byte[]> entries;
+	private boolean dirty = false;
+
+	public MappingSnapshot(File file, int schemaVersion)
+	{
+		this.file = file;
+		this.schemaVersion = schemaVersion;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	public int getSchemaVersion()
+	{
+		return schemaVersion;
+	}
+
+	public synchronized int size()
+	{
+		return entries().size();
+	}
+
+	public synchronized boolean isDirty()
+	{
+		return dirty;
+	}
+
+	/**
+	 * Rebuilds the mapping of the given class from the snapshot, or returns
+	 * null when the snapshot has no usable entry for it.
+	 */
+	synchronized <T> EntityMapping<T> restore(Class<T> entityClass)
+	{
+		byte[] entry = entries().get(entityClass.getName());
+
+		if (entry == null)
+			return null;
+
+		try
+		{
+			return decode(entityClass, new DataInputStream(new ByteArrayInputStream(entry)));
+		}
+		catch (Exception e)
+		{
+			Logger.i(TAG, "Snapshot entry for " + entityClass.getName() + " is out of date, mapping the class again", e);
+
+			entries.remove(entityClass.getName());
+			dirty = true;
+
+			return null;
+		}
+	}
+
+	synchronized void record(EntityMapping<?> mapping)
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+
+			encode(mapping, new DataOutputStream(bytes));
+
+			entries().put(mapping.getEntityClass().getName(), bytes.toByteArray());
+			dirty = true;
+		}
+		catch (IOException e)
+		{
+			Logger.w(TAG, "Can not record mapping of " + mapping.getEntityClass().getName(), e);
+		}
+	}
+
+	/**
+	 * Writes the snapshot if anything changed since it was loaded. The file is
+	 * written next to the target and renamed over it, so a crash never leaves
+	 * a partial snapshot behind.
+	 */
+	public synchronized void save() throws IOException
+	{
+		if (!dirty)
+			return;
+
+		File temporary = new File(file.getPath() + ".tmp");
+		FileOutputStream fileStream = new FileOutputStream(temporary);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream));
+
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(schemaVersion);
+			out.writeInt(entries.size());
+
+			CRC32 crc = new CRC32();
+
+			for (Map.Entry<String, byte[]> entry : entries.entrySet())
+			{
+				crc.reset();
+				crc.update(entry.getValue());
+
+				out.writeUTF(entry.getKey());
+				out.writeLong(crc.getValue());
+				out.writeInt(entry.getValue().length);
+				out.write(entry.getValue());
+			}
+
+			out.flush();
+			fileStream.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+
+		if (!temporary.renameTo(file))
+		{
+			temporary.delete();
+
+			throw new IOException("Can not replace mapping snapshot " + file);
+		}
+
+		dirty = false;
+
+		Logger.d(TAG, "Saved " + entries.size() + " mappings to " + file);
+	}
+
+	private Map<String, byte[]> entries()
+	{
+		if (entries == null)
+			entries = load();
+
+		return entries;
+	}
+
+	private Map<String, byte[]> load()
+	{
+		Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+
+		DataInputStream in = null;
+
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+			{
+				Logger.i(TAG, "Ignoring mapping snapshot in an unknown format : " + file);
+			}
+			else if (in.readInt() != schemaVersion)
+			{
+				Logger.i(TAG, "Ignoring mapping snapshot of an older schema version : " + file);
+			}
+			else
+			{
+				int count = in.readInt();
+				CRC32 crc = new CRC32();
+
+				for (int i = 0; i < count; i++)
+				{
+					String className = in.readUTF();
+					long checksum = in.readLong();
+					byte[] entry = new byte[in.readInt()];
+
+					in.readFully(entry);
+
+					crc.reset();
+					crc.update(entry);
+
+					if (crc.getValue() == checksum)
+						result.put(className, entry);
+					else
+						Logger.w(TAG, "Ignoring corrupt snapshot entry for " + className);
+				}
+			}
+		}
+		catch (FileNotFoundException e)
+		{
+			// First launch, nothing to restore
+		}
+		catch (IOException e)
+		{
+			Logger.w(TAG, "Can not read mapping snapshot " + file, e);
+
+			result.clear();
+		}
+		finally
+		{
+			if (in != null)
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException e)
+				{
+					Logger.d(TAG, "Error closing mapping snapshot", e);
+				}
+			}
+		}
+
+		return result;
+	}
+
+	private void encode(EntityMapping<?> mapping, DataOutputStream out) throws IOException
+	{
+		out.writeUTF(mapping.getMappedTableName());
+
+		ColumnMapping[] columns = mapping.getColumns();
+
+		out.writeInt(columns.length);
+
+		for (ColumnMapping column : columns)
+		{
+			Property property = column.getProperty();
+
+			out.writeByte(column == mapping.getIdMapping() ? KIND_ID : KIND_COLUMN);
+			out.writeUTF(property.getName());
+			out.writeUTF(property.getType().getName());
+			out.writeUTF(property.getGetterMethod() != null ? property.getGetterMethod().getName() : "");
+			out.writeUTF(property.getSetterMethod() != null ? property.getSetterMethod().getName() : "");
+			out.writeUTF(property.getField() != null ? property.getField().getName() : "");
+			out.writeUTF(column.getColumnName());
+			out.writeUTF(column.getColumnType());
+			out.writeUTF(column.getColumnSize());
+			out.writeUTF(column.getDefaultValue());
+
+			if (column == mapping.getIdMapping())
+			{
+				IdColumnMapping idColumn = (IdColumnMapping) column;
+
+				out.writeBoolean(idColumn.isEnforce());
+				out.writeBoolean(idColumn.isReuse());
+			}
+		}
+	}
+
+	private <T> EntityMapping<T> decode(Class<T> entityClass, DataInputStream in) throws Exception
+	{
+		EntityMapping<T> mapping = new EntityMapping<T>();
+
+		mapping.setEntityClass(entityClass);
+		mapping.setMappedTableName(in.readUTF());
+
+		int count = in.readInt();
+
+		for (int i = 0; i < count; i++)
+		{
+			byte kind = in.readByte();
+			String name = in.readUTF();
+			Class<?> type = resolveType(in.readUTF(), entityClass.getClassLoader());
+			String getterName = in.readUTF();
+			String setterName = in.readUTF();
+			String fieldName = in.readUTF();
+
+			Method getter = getterName.length() > 0 ? entityClass.getMethod(getterName) : null;
+			Method setter = setterName.length() > 0 ? entityClass.getMethod(setterName, type) : null;
+			Field field = fieldName.length() > 0 ? entityClass.getField(fieldName) : null;
+
+			Property property = new Property(name, entityClass, getter, setter, field, type, null);
+
+			ColumnMapping column = new ColumnMapping();
+
+			column.setProperty(property);
+			column.setJavaType(type);
+			column.setColumnName(in.readUTF());
+			column.setColumnType(in.readUTF());
+			column.setColumnSize(in.readUTF());
+			column.setDefaultValue(in.readUTF());
+
+			if (kind == KIND_ID)
+			{
+				IdColumnMapping idColumn = new IdColumnMapping(in.readBoolean(), in.readBoolean(), column);
+
+				mapping.setIdMapping(idColumn);
+				mapping.setColumnMapping(property, idColumn);
+			}
+			else
+			{
+				mapping.setColumnMapping(property, column);
+			}
+		}
+
+		return mapping;
+	}
+
+	private static Class<?> resolveType(String name, ClassLoader classLoader) throws ClassNotFoundException
+	{
+		Class<?> type = PRIMITIVES.get(name);
+
+		return type != null ? type : Class.forName(name, false, classLoader);
+	}
+}
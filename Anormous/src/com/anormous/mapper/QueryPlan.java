@@ -0,0 +1,110 @@
+package com.anormous.mapper;
+
+import com.anormous.mapper.EntityMapping.ColumnMapping;
+
+/**
+ * Everything a select needs that only depends on the entity class and the
+ * shape of its clauses: the projection, the translated clauses and the
+ * reader for each projected column. Column i of the cursor is always read
+ * by reader i, so no column index lookups happen while hydrating.
+ */
+public class QueryPlan<T>
+{
+	private final EntityMapping<T> mapping;
+	private final Class<T> entityClass;
+	private final String tableName;
+	private final boolean distinct;
+	private final String[] columns;
+	private final ColumnMapping[] columnMappings;
+	private final ColumnReader[] readers;
+	private final String whereClause;
+	private final String groupBy;
+	private final String having;
+	private final String orderBy;
+
+	/**
+	 * Public for {@link IEntityMapper} implementations outside this package,
+	 * the clauses are expected to be translated to column names already.
+	 */
+	public QueryPlan(EntityMapping<T> mapping, boolean distinct, ColumnMapping[] columnMappings, String whereClause, String groupBy, String having, String orderBy)
+	{
+		this.mapping = mapping;
+		this.entityClass = mapping.getEntityClass();
+		this.tableName = mapping.getMappedTableName();
+		this.distinct = distinct;
+		this.columnMappings = columnMappings;
+		this.whereClause = whereClause;
+		this.groupBy = groupBy;
+		this.having = having;
+		this.orderBy = orderBy;
+
+		this.columns = new String[columnMappings.length];
+		this.readers = new ColumnReader[columnMappings.length];
+
+		for (int i = 0; i < columnMappings.length; i++)
+		{
+			columns[i] = columnMappings[i].getColumnName();
+			readers[i] = columnMappings[i].getReader();
+		}
+	}
+
+	public Class<T> getEntityClass()
+	{
+		return entityClass;
+	}
+
+	public T newInstance() throws InstantiationException, IllegalAccessException
+	{
+		return mapping.newInstance();
+	}
+
+	public String getTableName()
+	{
+		return tableName;
+	}
+
+	public boolean isDistinct()
+	{
+		return distinct;
+	}
+
+	public String[] getColumns()
+	{
+		return columns;
+	}
+
+	public int getColumnCount()
+	{
+		return columns.length;
+	}
+
+	public ColumnMapping getColumnMapping(int index)
+	{
+		return columnMappings[index];
+	}
+
+	public ColumnReader getReader(int index)
+	{
+		return readers[index];
+	}
+
+	public String getWhereClause()
+	{
+		return whereClause;
+	}
+
+	public String getGroupBy()
+	{
+		return groupBy;
+	}
+
+	public String getHaving()
+	{
+		return having;
+	}
+
+	public String getOrderBy()
+	{
+		return orderBy;
+	}
+}
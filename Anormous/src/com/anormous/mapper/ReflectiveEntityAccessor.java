@@ -0,0 +1,174 @@
+package com.anormous.mapper;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.List;
+
+import com.anormous.logger.Logger;
+import com.anormous.mapper.EntityMapping.Property;
+
+/**
+ * {@link EntityAccessor} for entities without a generated accessor. Fields,
+ * getters, setters and the no argument constructor are resolved and made
+ * accessible once when the entity is mapped, so reads and writes skip the
+ * per call accessibility checks and lookups of plain reflection.
+ */
+class ReflectiveEntityAccessor<T> implements EntityAccessor<T>
+{
+	private static final String TAG = "ReflectiveEntityAccessor";
+
+	private final Constructor<T> constructor;
+	private final String[] names;
+	private final Field[] fields;
+	private final Method[] getters;
+	private final Method[] setters;
+
+	ReflectiveEntityAccessor(Class<T> entityClass, List<Property> properties)
+	{
+		this.constructor = resolveConstructor(entityClass);
+
+		int count = properties.size();
+
+		this.names = new String[count];
+		this.fields = new Field[count];
+		this.getters = new Method[count];
+		this.setters = new Method[count];
+
+		for (int i = 0; i < count; i++)
+		{
+			Property property = properties.get(i);
+
+			names[i] = property.getName();
+			fields[i] = makeAccessible(property.getField());
+			getters[i] = makeAccessible(property.getGetterMethod());
+			setters[i] = makeAccessible(property.getSetterMethod());
+		}
+	}
+
+	private static <T> Constructor<T> resolveConstructor(Class<T> entityClass)
+	{
+		try
+		{
+			return makeAccessible(entityClass.getDeclaredConstructor());
+		}
+		catch (NoSuchMethodException e)
+		{
+			return null;
+		}
+		catch (SecurityException e)
+		{
+			Logger.d(TAG, "Can not access no argument constructor of " + entityClass, e);
+
+			return null;
+		}
+	}
+
+	private static <A extends AccessibleObject> A makeAccessible(A member)
+	{
+		if (member != null && !member.isAccessible())
+		{
+			try
+			{
+				member.setAccessible(true);
+			}
+			catch (SecurityException e)
+			{
+				Logger.d(TAG, "Can not suppress access checks for " + member, e);
+			}
+		}
+
+		return member;
+	}
+
+	boolean canInstantiate()
+	{
+		return constructor != null;
+	}
+
+	@Override
+	public T newInstance()
+	{
+		try
+		{
+			return constructor.newInstance();
+		}
+		catch (InvocationTargetException e)
+		{
+			throw rethrow(e.getCause());
+		}
+		catch (Exception e)
+		{
+			throw new IllegalStateException("Can not instantiate " + constructor.getDeclaringClass().getName(), e);
+		}
+	}
+
+	@Override
+	public int indexOf(String propertyName)
+	{
+		for (int i = 0; i < names.length; i++)
+		{
+			if (names[i].equals(propertyName))
+				return i;
+		}
+
+		return -1;
+	}
+
+	@Override
+	public Object get(T bean, int propertyIndex)
+	{
+		try
+		{
+			if (fields[propertyIndex] != null)
+				return fields[propertyIndex].get(bean);
+			else
+				return getters[propertyIndex].invoke(bean);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw rethrow(e.getCause());
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new IllegalStateException("Can not read property " + names[propertyIndex], e);
+		}
+	}
+
+	@Override
+	public void set(T bean, int propertyIndex, Object value)
+	{
+		try
+		{
+			if (fields[propertyIndex] != null)
+				fields[propertyIndex].set(bean, value);
+			else if (setters[propertyIndex] != null)
+				setters[propertyIndex].invoke(bean, value);
+			else
+				throw new UnsupportedOperationException("Property " + names[propertyIndex] + " is read only");
+		}
+		catch (InvocationTargetException e)
+		{
+			throw rethrow(e.getCause());
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new IllegalStateException("Can not write property " + names[propertyIndex], e);
+		}
+	}
+
+	private static RuntimeException rethrow(Throwable cause)
+	{
+		if (cause instanceof RuntimeException)
+			throw (RuntimeException) cause;
+
+		if (cause instanceof Error)
+			throw (Error) cause;
+
+		// Unwrapped again into an InvocationTargetException by Property
+		return new UndeclaredThrowableException(cause);
+	}
+}
@@ -0,0 +1,277 @@
+package com.anormous.mapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Splits an SQL fragment (a where, group by, having or order by clause) into
+ * tokens, so that identifiers can be told apart from string literals,
+ * quoted names, numbers and parameters. Also splits whole scripts into
+ * statements.
+ */
+public class SQLTokenizer
+{
+	public static enum TokenType
+	{
+		IDENTIFIER, QUOTED_IDENTIFIER, STRING, NUMBER, PARAMETER, SYMBOL, WHITESPACE, COMMENT
+	}
+
+	public static class Token
+	{
+		private final TokenType type;
+		private final String text;
+
+		Token(TokenType type, String text)
+		{
+			this.type = type;
+			this.text = text;
+		}
+
+		public TokenType getType()
+		{
+			return type;
+		}
+
+		public String getText()
+		{
+			return text;
+		}
+
+		@Override
+		public String toString()
+		{
+			return type + "[" + text + "]";
+		}
+	}
+
+	public static List<Token> tokenize(String sql)
+	{
+		List<Token> tokens = new ArrayList<Token>();
+
+		int length = sql.length();
+		int position = 0;
+
+		while (position < length)
+		{
+			char c = sql.charAt(position);
+			int end;
+			TokenType type;
+
+			if (Character.isWhitespace(c))
+			{
+				end = position + 1;
+
+				while (end < length && Character.isWhitespace(sql.charAt(end)))
+					end++;
+
+				type = TokenType.WHITESPACE;
+			}
+			else if (c == '-' && position + 1 < length && sql.charAt(position + 1) == '-')
+			{
+				end = sql.indexOf('\n', position);
+				end = end < 0 ? length : end;
+				type = TokenType.COMMENT;
+			}
+			else if (c == '/' && position + 1 < length && sql.charAt(position + 1) == '*')
+			{
+				end = sql.indexOf("*/", position + 2);
+				end = end < 0 ? length : end + 2;
+				type = TokenType.COMMENT;
+			}
+			else if (c == '\'')
+			{
+				end = skipQuoted(sql, position, '\'');
+				type = TokenType.STRING;
+			}
+			else if (c == '"' || c == '`')
+			{
+				end = skipQuoted(sql, position, c);
+				type = TokenType.QUOTED_IDENTIFIER;
+			}
+			else if (c == '[')
+			{
+				end = sql.indexOf(']', position);
+				end = end < 0 ? length : end + 1;
+				type = TokenType.QUOTED_IDENTIFIER;
+			}
+			else if (Character.isDigit(c) || (c == '.' && position + 1 < length && Character.isDigit(sql.charAt(position + 1))))
+			{
+				end = skipNumber(sql, position);
+				type = TokenType.NUMBER;
+			}
+			else if (c == '?' || ((c == ':' || c == '@' || c == '$') && position + 1 < length && isIdentifierPart(sql.charAt(position + 1))))
+			{
+				end = position + 1;
+
+				while (end < length && isIdentifierPart(sql.charAt(end)))
+					end++;
+
+				type = TokenType.PARAMETER;
+			}
+			else if (isIdentifierStart(c))
+			{
+				end = position + 1;
+
+				while (end < length && isIdentifierPart(sql.charAt(end)))
+					end++;
+
+				type = TokenType.IDENTIFIER;
+			}
+			else
+			{
+				end = position + 1;
+				type = TokenType.SYMBOL;
+			}
+
+			tokens.add(new Token(type, sql.substring(position, end)));
+			position = end;
+		}
+
+		return tokens;
+	}
+
+	/**
+	 * Splits a script into its statements, without the terminating
+	 * semicolons and comments. Semicolons inside literals, comments and the
+	 * BEGIN ... END body of a trigger do not end a statement.
+	 */
+	public static List<String> splitStatements(String script)
+	{
+		List<String> statements = new ArrayList<String>();
+		StringBuilder statement = new StringBuilder();
+		int wordCount = 0;
+		boolean trigger = false;
+		boolean body = false;
+		int caseDepth = 0;
+
+		for (Token token : tokenize(script))
+		{
+			if (token.getType() == TokenType.SYMBOL && token.getText().equals(";") && !body)
+			{
+				if (statement.toString().trim().length() > 0)
+					statements.add(statement.toString().trim());
+
+				statement.setLength(0);
+				wordCount = 0;
+				trigger = false;
+
+				continue;
+			}
+
+			if (token.getType() == TokenType.COMMENT)
+			{
+				statement.append(' ');
+
+				continue;
+			}
+
+			statement.append(token.getText());
+
+			if (token.getType() != TokenType.IDENTIFIER)
+				continue;
+
+			String word = token.getText().toUpperCase(Locale.US);
+
+			// CREATE [TEMP] TRIGGER
+			if (wordCount > 0 && wordCount < 3 && word.equals("TRIGGER") && statement.toString().trim().toUpperCase(Locale.US).startsWith("CREATE"))
+				trigger = true;
+
+			wordCount++;
+
+			if (trigger && !body && word.equals("BEGIN"))
+			{
+				body = true;
+				caseDepth = 0;
+			}
+			else if (body && word.equals("CASE"))
+			{
+				caseDepth++;
+			}
+			else if (body && word.equals("END"))
+			{
+				if (caseDepth > 0)
+					caseDepth--;
+				else
+					body = false;
+			}
+		}
+
+		if (statement.toString().trim().length() > 0)
+			statements.add(statement.toString().trim());
+
+		return statements;
+	}
+
+	private static int skipQuoted(String sql, int start, char quote)
+	{
+		int position = start + 1;
+
+		while (position < sql.length())
+		{
+			if (sql.charAt(position) == quote)
+			{
+				// A doubled quote is an escaped quote inside the literal
+				if (position + 1 < sql.length() && sql.charAt(position + 1) == quote)
+				{
+					position += 2;
+
+					continue;
+				}
+
+				return position + 1;
+			}
+
+			position++;
+		}
+
+		return sql.length();
+	}
+
+	private static int skipNumber(String sql, int start)
+	{
+		int position = start;
+		int length = sql.length();
+
+		if (sql.startsWith("0x", start) || sql.startsWith("0X", start))
+		{
+			position += 2;
+
+			while (position < length && Character.digit(sql.charAt(position), 16) >= 0)
+				position++;
+
+			return position;
+		}
+
+		while (position < length && (Character.isDigit(sql.charAt(position)) || sql.charAt(position) == '.'))
+			position++;
+
+		if (position < length && (sql.charAt(position) == 'e' || sql.charAt(position) == 'E'))
+		{
+			int exponent = position + 1;
+
+			if (exponent < length && (sql.charAt(exponent) == '+' || sql.charAt(exponent) == '-'))
+				exponent++;
+
+			if (exponent < length && Character.isDigit(sql.charAt(exponent)))
+			{
+				position = exponent;
+
+				while (position < length && Character.isDigit(sql.charAt(position)))
+					position++;
+			}
+		}
+
+		return position;
+	}
+
+	private static boolean isIdentifierStart(char c)
+	{
+		return Character.isLetter(c) || c == '_';
+	}
+
+	private static boolean isIdentifierPart(char c)
+	{
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+	}
+}
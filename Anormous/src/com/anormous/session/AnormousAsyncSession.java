@@ -0,0 +1,550 @@
+package com.anormous.session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.anormous.error.AnormousException;
+import com.anormous.logger.Logger;
+
+/**
+ * Non blocking facade over {@link AnormousSession}. Writes are queued to a
+ * single writer thread which groups whatever arrives within the configured
+ * latency (up to the batch size) into one transaction, reads run on a
+ * separate pool so they never wait behind the write queue.
+ */
+public class AnormousAsyncSession
+{
+	private static final String TAG = "AnormousAsyncSession";
+
+	public final static long DEFAULT_MAX_LATENCY_MILLIS = 5;
+	public final static int DEFAULT_MAX_BATCH_SIZE = 200;
+	public final static int DEFAULT_READ_THREADS = 2;
+
+	private static final long FOREIGN_TRANSACTION_TIMEOUT_MILLIS = 10000;
+
+	private final AnormousSession session;
+	private final long maxLatencyNanos;
+	private final int maxBatchSize;
+	private final BlockingQueue<WriteTask<?>> writeQueue = new LinkedBlockingQueue<WriteTask<?>>();
+	private final ExecutorService readExecutor;
+	private final Thread writerThread;
+
+	private final WriteTask<Void> shutdownMarker = new WriteTask<Void>(null);
+	private volatile boolean running = true;
+
+	public AnormousAsyncSession(AnormousSession session)
+	{
+		this(session, DEFAULT_READ_THREADS, DEFAULT_MAX_LATENCY_MILLIS, DEFAULT_MAX_BATCH_SIZE);
+	}
+
+	public AnormousAsyncSession(AnormousSession session, int readThreads, long maxLatencyMillis, int maxBatchSize)
+	{
+		if (readThreads < 1)
+			throw new IllegalArgumentException("At least one read thread is required, found : " + readThreads);
+
+		if (maxBatchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1, found : " + maxBatchSize);
+
+		this.session = session;
+		this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxLatencyMillis));
+		this.maxBatchSize = maxBatchSize;
+		this.readExecutor = Executors.newFixedThreadPool(readThreads, new NamedThreadFactory("anormous-reader-"));
+
+		this.writerThread = new NamedThreadFactory("anormous-writer-").newThread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				processWrites();
+			}
+		});
+
+		this.writerThread.start();
+	}
+
+	public AnormousSession getSession()
+	{
+		return session;
+	}
+
+	public Future<Long> save(final Object bean)
+	{
+		return write(new Callable<Long>()
+		{
+			@Override
+			public Long call() throws Exception
+			{
+				return session.save(bean);
+			}
+		});
+	}
+
+	public Future<BatchResult> saveAll(final Collection<?> beans)
+	{
+		return write(new Callable<BatchResult>()
+		{
+			@Override
+			public BatchResult call() throws Exception
+			{
+				return session.saveAll(beans);
+			}
+		});
+	}
+
+	public Future<Void> saveOrUpdate(final Object bean)
+	{
+		return write(new Callable<Void>()
+		{
+			@Override
+			public Void call() throws Exception
+			{
+				session.saveOrUpdate(bean);
+
+				return null;
+			}
+		});
+	}
+
+	public Future<BatchResult> saveOrUpdateAll(final Collection<?> beans)
+	{
+		return write(new Callable<BatchResult>()
+		{
+			@Override
+			public BatchResult call() throws Exception
+			{
+				return session.saveOrUpdateAll(beans);
+			}
+		});
+	}
+
+	public <T> Future<T> update(final T bean)
+	{
+		return write(new Callable<T>()
+		{
+			@Override
+			public T call() throws Exception
+			{
+				return session.update(bean);
+			}
+		});
+	}
+
+	public <T> Future<T> update(final T bean, final String whereClause, final String[] whereArgs)
+	{
+		return write(new Callable<T>()
+		{
+			@Override
+			public T call() throws Exception
+			{
+				return session.update(bean, whereClause, whereArgs);
+			}
+		});
+	}
+
+	public Future<Void> delete(final Object bean)
+	{
+		return write(new Callable<Void>()
+		{
+			@Override
+			public Void call() throws Exception
+			{
+				session.delete(bean);
+
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> delete(final Object bean, final String whereClause, final String[] whereArgs)
+	{
+		return write(new Callable<Void>()
+		{
+			@Override
+			public Void call() throws Exception
+			{
+				session.delete(bean, whereClause, whereArgs);
+
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> executeUpdate(final String sql)
+	{
+		return write(new Callable<Void>()
+		{
+			@Override
+			public Void call() throws Exception
+			{
+				session.executeUpdate(sql);
+
+				return null;
+			}
+		});
+	}
+
+	public <T> Future<List<T>> select(Class<T> entityClass)
+	{
+		return select(false, entityClass, null, null, null, null, null, null);
+	}
+
+	public <T> Future<List<T>> select(Class<T> entityClass, String whereClause, String[] whereArgs)
+	{
+		return select(false, entityClass, whereClause, whereArgs, null, null, null, null);
+	}
+
+	public <T> Future<List<T>> select(Class<T> entityClass, String whereClause, String[] whereArgs, String groupBy, String having, String orderBy)
+	{
+		return select(false, entityClass, whereClause, whereArgs, groupBy, having, orderBy, null);
+	}
+
+	public <T> Future<List<T>> select(final boolean distinct, final Class<T> entityClass, final String whereClause, final String[] whereArgs, final String groupBy, final String having, final String orderBy, final String limit)
+	{
+		return read(new Callable<List<T>>()
+		{
+			@Override
+			public List<T> call() throws Exception
+			{
+				return session.select(distinct, entityClass, whereClause, whereArgs, groupBy, having, orderBy, limit);
+			}
+		});
+	}
+
+	public <T> Future<Page<T>> selectPage(final Class<T> entityClass, final String whereClause, final String[] whereArgs, final String orderProperty, final boolean ascending, final int pageSize, final String continuationToken)
+	{
+		return read(new Callable<Page<T>>()
+		{
+			@Override
+			public Page<T> call() throws Exception
+			{
+				return session.selectPage(entityClass, whereClause, whereArgs, orderProperty, ascending, pageSize, continuationToken);
+			}
+		});
+	}
+
+	public Future<List<String[]>> rawQuery(final String sql, final String[] selectionArgs)
+	{
+		return read(new Callable<List<String[]>>()
+		{
+			@Override
+			public List<String[]> call() throws Exception
+			{
+				return session.rawQuery(sql, selectionArgs);
+			}
+		});
+	}
+
+	public int getPendingWriteCount()
+	{
+		return writeQueue.size();
+	}
+
+	public boolean isRunning()
+	{
+		return running;
+	}
+
+	public void shutdown()
+	{
+		if (!running)
+			return;
+
+		running = false;
+
+		// Everything queued before the marker is still committed
+		writeQueue.offer(shutdownMarker);
+		readExecutor.shutdown();
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		writerThread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+
+		return !writerThread.isAlive() && readExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Only takes the session operations built by this class. A write may run
+	 * a second time after its group was rolled back, which these can.
+	 */
+	private <V> Future<V> write(Callable<V> operation)
+	{
+		if (!running)
+			throw new IllegalStateException("Async session has been shut down");
+
+		WriteTask<V> task = new WriteTask<V>(operation);
+
+		writeQueue.offer(task);
+
+		return task;
+	}
+
+	private <V> Future<V> read(Callable<V> operation)
+	{
+		if (!running)
+			throw new IllegalStateException("Async session has been shut down");
+
+		return readExecutor.submit(operation);
+	}
+
+	private void processWrites()
+	{
+		List<WriteTask<?>> batch = new ArrayList<WriteTask<?>>(maxBatchSize);
+		boolean stop = false;
+
+		while (!stop)
+		{
+			try
+			{
+				WriteTask<?> task = writeQueue.take();
+
+				long deadline = System.nanoTime() + maxLatencyNanos;
+
+				while (task != null)
+				{
+					if (task == shutdownMarker)
+					{
+						stop = true;
+
+						break;
+					}
+
+					batch.add(task);
+
+					if (batch.size() >= maxBatchSize)
+						break;
+
+					long remaining = deadline - System.nanoTime();
+
+					task = remaining > 0 ? writeQueue.poll(remaining, TimeUnit.NANOSECONDS) : writeQueue.poll();
+				}
+			}
+			catch (InterruptedException ex)
+			{
+				Logger.w(TAG, "Writer thread interrupted, stopping", ex);
+
+				stop = true;
+			}
+
+			if (!batch.isEmpty())
+			{
+				commit(batch);
+				batch.clear();
+			}
+		}
+
+		// Anything that slipped in after the marker would never run
+		WriteTask<?> orphan;
+
+		while ((orphan = writeQueue.poll()) != null)
+		{
+			if (orphan != shutdownMarker)
+				orphan.fail(new AnormousException("Async session has been shut down"));
+		}
+	}
+
+	private void commit(List<WriteTask<?>> batch)
+	{
+		long start = System.nanoTime();
+
+		// Holding the session lock keeps direct callers from interleaving
+		// their writes into the shared transaction
+		synchronized (session)
+		{
+			// begin() joins a transaction another thread has open, and the
+			// group would then commit or roll back that thread's work. Wait
+			// for its owner to end it, which needs the lock released here.
+			long waitDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FOREIGN_TRANSACTION_TIMEOUT_MILLIS);
+
+			while (session.isInOtherThreadsTransaction())
+			{
+				long remaining = TimeUnit.NANOSECONDS.toMillis(waitDeadline - System.nanoTime());
+				Exception failure = null;
+
+				if (remaining <= 0)
+				{
+					failure = new AnormousException("Another thread kept a transaction open for more than " + FOREIGN_TRANSACTION_TIMEOUT_MILLIS + " ms");
+				}
+				else
+				{
+					try
+					{
+						session.wait(remaining);
+					}
+					catch (InterruptedException ex)
+					{
+						Thread.currentThread().interrupt();
+
+						failure = ex;
+					}
+				}
+
+				if (failure != null)
+				{
+					for (WriteTask<?> task : batch)
+					{
+						task.fail(failure);
+					}
+
+					return;
+				}
+			}
+
+			WriteTask<?> failed = null;
+
+			try
+			{
+				session.begin();
+
+				for (WriteTask<?> task : batch)
+				{
+					failed = task;
+
+					task.execute();
+				}
+
+				failed = null;
+
+				session.end();
+
+				for (WriteTask<?> task : batch)
+				{
+					task.complete();
+				}
+
+				Logger.d(TAG, "Group committed " + batch.size() + " writes in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+			}
+			catch (Exception ex)
+			{
+				rollbackQuietly();
+
+				if (failed == null)
+				{
+					// The commit itself failed, nothing tells which write
+					// caused it
+					Logger.w(TAG, "Group commit of " + batch.size() + " writes failed", ex);
+
+					for (WriteTask<?> task : batch)
+					{
+						task.fail(ex);
+					}
+
+					return;
+				}
+
+				Logger.w(TAG, "Write in a group of " + batch.size() + " failed, retrying the others individually", ex);
+
+				// The failed write is not run twice, the others were rolled
+				// back and run again on their own
+				failed.fail(ex);
+
+				for (WriteTask<?> task : batch)
+				{
+					if (task != failed)
+						commitSingle(task);
+				}
+			}
+		}
+	}
+
+	private void commitSingle(WriteTask<?> task)
+	{
+		try
+		{
+			session.begin();
+
+			task.execute();
+
+			session.end();
+
+			task.complete();
+		}
+		catch (Exception ex)
+		{
+			rollbackQuietly();
+
+			task.fail(ex);
+		}
+	}
+
+	private void rollbackQuietly()
+	{
+		try
+		{
+			session.rollback();
+		}
+		catch (AnormousException ex)
+		{
+			Logger.e(TAG, "Rollback failed", ex);
+		}
+	}
+
+	private static class WriteTask<V> extends FutureTask<V>
+	{
+		private final Callable<V> operation;
+		private V result;
+
+		WriteTask(Callable<V> operation)
+		{
+			super(operation != null ? operation : new Callable<V>()
+			{
+				@Override
+				public V call() throws Exception
+				{
+					return null;
+				}
+			});
+
+			this.operation = operation;
+		}
+
+		void execute() throws Exception
+		{
+			result = operation.call();
+		}
+
+		void complete()
+		{
+			// Results are only published once the transaction has committed
+			set(result);
+		}
+
+		void fail(Throwable throwable)
+		{
+			setException(throwable);
+		}
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory
+	{
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String prefix)
+		{
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+
+			return thread;
+		}
+	}
+}
@@ -1,16 +1,26 @@
 package com.anormous.session;
 
 import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
-import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
-import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 import com.anormous.error.AnormousException;
 import com.anormous.error.DuplicateKeyViolationException;
@@ -18,27 +28,61 @@ import com.anormous.helper.AnormousGenericDBHelper;
 import com.anormous.logger.Logger;
 import com.anormous.mapper.DefaultEntityMapper;
 import com.anormous.mapper.EntityMapping;
-import com.anormous.mapper.EntityMapping.ColumnMapping;
+import com.anormous.mapper.EntityMapping.IdColumnMapping;
 import com.anormous.mapper.EntityMapping.Property;
 import com.anormous.mapper.IEntityMapper;
+import com.anormous.mapper.QueryPlan;
+import com.anormous.session.StatementCache.Operation;
 
 public class AnormousSession
 {
-	@SuppressWarnings("unused")
 	private String TAG = this.getClass().toString();
 	private SQLiteDatabase db;
-	private final SQLiteOpenHelper dbHelper;
+	private final AnormousGenericDBHelper dbHelper;
 	private final IEntityMapper mapper;
 
-	private boolean inTransaction = false;
+	private volatile boolean inTransaction = false;
+	private volatile Thread transactionThread;
 	private boolean autoCommit = true;
 	private int currentOpenMode = -1;
 
+	private volatile ConnectionPool connectionPool;
+	private StatementCache statementCache = new StatementCache();
+	private volatile IdentityMap identityMap;
+	private volatile EntityCache entityCache = new LruEntityCache();
+	private volatile QueryResultCache queryResultCache;
+	private volatile IndexAdvisor indexAdvisor;
+
+	// Cache entries invalidated inside the current transaction, invalidated
+	// again once it commits or rolls back. A null set stands for the whole
+	// class, a null class for every class.
+	private final Map<Class<?>, Set<Object>> pendingInvalidations = new HashMap<Class<?>, Set<Object>>();
+
+	// Tables written inside the current transaction, a null table stands for
+	// every table
+	private final Set<String> pendingTables = new HashSet<String>();
+
+	private static final int QUERY_PLAN_CACHE_SIZE = 128;
+	private final Map<List<Object>, QueryPlan<?>> queryPlans = Collections.synchronizedMap(new LinkedHashMap<List<Object>, QueryPlan<?>>(QUERY_PLAN_CACHE_SIZE, 0.75f, true)
+	{
+		private static final long serialVersionUID = 6391794211856101263L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<List<Object>, QueryPlan<?>> eldest)
+		{
+			return size() > QUERY_PLAN_CACHE_SIZE;
+		}
+	});
+
+	private static Boolean upsertSupported;
+
 	private static AnormousSession instance;
 
 	public final static int READ = 1;
 	public final static int WRITE = 2;
 
+	public final static int DEFAULT_BATCH_SIZE = 500;
+
 	public synchronized static AnormousSession getInstance(AnormousGenericDBHelper dbHelper, IEntityMapper mapper)
 	{
 		if (instance == null)
@@ -88,6 +132,11 @@ public class AnormousSession
 		return inTransaction;
 	}
 
+	boolean isInOtherThreadsTransaction()
+	{
+		return inTransaction && transactionThread != Thread.currentThread();
+	}
+
 	public boolean isAutoCommit()
 	{
 		return autoCommit;
@@ -98,8 +147,244 @@ public class AnormousSession
 		this.autoCommit = autoCommit;
 	}
 
+	public synchronized void enableConnectionPool(int readerCount) throws AnormousException
+	{
+		if (connectionPool != null)
+		{
+			if (connectionPool.getSize() == readerCount)
+				return;
+
+			disableConnectionPool();
+		}
+
+		if (inTransaction)
+			throw new AnormousException("Connection pool can not be enabled while a transaction is active");
+
+		boolean opened = false;
+
+		try
+		{
+			if (db == null || !db.isOpen())
+			{
+				open(WRITE);
+				opened = true;
+			}
+
+			ConnectionPool pool = new ConnectionPool(dbHelper, readerCount);
+
+			if (pool.open(db))
+			{
+				connectionPool = pool;
+			}
+		}
+		finally
+		{
+			if (opened)
+				close();
+		}
+	}
+
+	public synchronized void disableConnectionPool()
+	{
+		if (connectionPool != null)
+		{
+			connectionPool.close();
+			connectionPool = null;
+		}
+	}
+
+	public boolean isConnectionPoolEnabled()
+	{
+		return connectionPool != null;
+	}
+
+	public PoolStatistics getConnectionPoolStatistics()
+	{
+		ConnectionPool pool = connectionPool;
+
+		return pool != null ? pool.getStatistics() : null;
+	}
+
+	public StatementCache getStatementCache()
+	{
+		return statementCache;
+	}
+
+	public synchronized void setStatementCacheSize(int capacity)
+	{
+		statementCache.clear();
+		statementCache = new StatementCache(capacity);
+	}
+
+	/**
+	 * Makes lookups by id inside a transaction return the bean instance
+	 * already loaded or written by that transaction instead of querying
+	 * again. The map is only used by the thread running the transaction and
+	 * is cleared when it ends or rolls back, and when the session closes.
+	 */
+	public void enableIdentityMap()
+	{
+		enableIdentityMap(IdentityMap.DEFAULT_MAX_ENTRIES);
+	}
+
+	public void enableIdentityMap(int maxEntries)
+	{
+		if (identityMap == null || identityMap.getMaxEntries() != maxEntries)
+			identityMap = new IdentityMap(maxEntries);
+	}
+
+	public void disableIdentityMap()
+	{
+		identityMap = null;
+	}
+
+	public boolean isIdentityMapEnabled()
+	{
+		return identityMap != null;
+	}
+
+	public IdentityMap getIdentityMap()
+	{
+		return identityMap;
+	}
+
+	public EntityCache getEntityCache()
+	{
+		return entityCache;
+	}
+
+	/**
+	 * Replaces the second level cache used for lookups by id of classes
+	 * annotated with {@link com.anormous.annotation.Cacheable}, null turns
+	 * it off.
+	 */
+	public synchronized void setEntityCache(EntityCache entityCache)
+	{
+		this.entityCache = entityCache;
+
+		pendingInvalidations.clear();
+	}
+
+	public void enableQueryResultCache()
+	{
+		enableQueryResultCache(QueryResultCache.DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Keeps the results of entity selects, up to roughly the given number of
+	 * bytes, until a write through this session touches the table they were
+	 * read from. Writes made outside the session, or by triggers, are not
+	 * seen, clear the cache after those.
+	 */
+	public synchronized void enableQueryResultCache(long maxBytes)
+	{
+		queryResultCache = new QueryResultCache(maxBytes);
+
+		pendingTables.clear();
+	}
+
+	public synchronized void disableQueryResultCache()
+	{
+		queryResultCache = null;
+
+		pendingTables.clear();
+	}
+
+	public QueryResultCache getQueryResultCache()
+	{
+		return queryResultCache;
+	}
+
+	/**
+	 * Starts recording the where and order by clauses of selects, updates
+	 * and deletes with their timings, see {@link #adviseIndexes()}.
+	 */
+	public void enableIndexAdvisor()
+	{
+		if (indexAdvisor == null)
+			indexAdvisor = new IndexAdvisor();
+	}
+
+	public void disableIndexAdvisor()
+	{
+		indexAdvisor = null;
+	}
+
+	public IndexAdvisor getIndexAdvisor()
+	{
+		return indexAdvisor;
+	}
+
+	/**
+	 * Samples the query plan of every statement shape recorded since the
+	 * last call and returns the indexes that would avoid full scans and
+	 * temporary sorts, ranked by the time spent in the statements they
+	 * would serve.
+	 */
+	public synchronized List<IndexAdvisor.Advice> adviseIndexes() throws AnormousException
+	{
+		IndexAdvisor advisor = indexAdvisor;
+
+		if (advisor == null)
+			throw new AnormousException("Index advisor is not enabled");
+
+		boolean opened = false;
+
+		try
+		{
+			if (db == null || !db.isOpen())
+			{
+				open(READ);
+				opened = true;
+			}
+
+			for (IndexAdvisor.QueryShape shape : advisor.unexplained())
+			{
+				List<String> plan = new ArrayList<String>();
+
+				try
+				{
+					Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + shape.getExplainSql(), shape.getWhereArgs());
+
+					try
+					{
+						int detailIndex = cursor.getColumnIndex("detail");
+
+						while (cursor.moveToNext())
+						{
+							plan.add(cursor.getString(detailIndex >= 0 ? detailIndex : cursor.getColumnCount() - 1));
+						}
+					}
+					finally
+					{
+						cursor.close();
+					}
+				}
+				catch (SQLException ex)
+				{
+					Logger.w(TAG, "Can not explain " + shape.getSql(), ex);
+				}
+
+				advisor.explained(shape, plan);
+			}
+
+			List<IndexAdvisor.Advice> advice = advisor.getAdvice();
+
+			Logger.i(TAG, "Index advice :\n" + advisor.report());
+
+			return advice;
+		}
+		finally
+		{
+			if (opened)
+				close();
+		}
+	}
+
 	public synchronized void open(int action) throws AnormousException
 	{
+		closeDeferred = false;
+
 		try
 		{
 			if (db == null || !db.isOpen())
@@ -130,10 +415,28 @@ public class AnormousSession
 				{
 					db.setTransactionSuccessful();
 					db.endTransaction();
+
+					applyPendingInvalidations();
 				}
 
-				db.close();
 				inTransaction = false;
+				transactionThread = null;
+
+				// Wakes writers waiting for this transaction to end
+				notifyAll();
+
+				clearIdentityMap();
+
+				if (openIterators > 0)
+				{
+					closeDeferred = true;
+
+					return;
+				}
+
+				statementCache.clear();
+
+				db.close();
 			}
 		}
 		catch (Exception ex)
@@ -144,6 +447,11 @@ public class AnormousSession
 
 	private boolean autoOpened = false;
 
+	// Iterators reading from db outside the session lock, the connection is
+	// closed once the last of them is released
+	private int openIterators = 0;
+	private boolean closeDeferred = false;
+
 	public synchronized void begin() throws AnormousException
 	{
 		try
@@ -158,6 +466,7 @@ public class AnormousSession
 			{
 				db.beginTransaction();
 				inTransaction = true;
+				transactionThread = Thread.currentThread();
 			}
 		}
 		catch (Exception ex)
@@ -176,6 +485,13 @@ public class AnormousSession
 				db.endTransaction();
 
 				inTransaction = false;
+				transactionThread = null;
+
+				// Wakes writers waiting for this transaction to end
+				notifyAll();
+
+				clearIdentityMap();
+				applyPendingInvalidations();
 			}
 
 			if (autoOpened)
@@ -193,6 +509,9 @@ public class AnormousSession
 
 	public synchronized void rollback() throws AnormousException
 	{
+		// Beans in the map may hold changes that never made it to the database
+		clearIdentityMap();
+
 		try
 		{
 			if (db != null && db.isOpen() && db.inTransaction() && inTransaction)
@@ -200,6 +519,12 @@ public class AnormousSession
 				db.endTransaction();
 
 				inTransaction = false;
+				transactionThread = null;
+
+				// Wakes writers waiting for this transaction to end
+				notifyAll();
+
+				applyPendingInvalidations();
 			}
 
 			if (autoOpened)
@@ -215,7 +540,7 @@ public class AnormousSession
 		}
 	}
 
-	public synchronized void save(Object bean) throws AnormousException
+	public synchronized long save(Object bean) throws AnormousException
 	{
 		boolean opened = false;
 
@@ -227,21 +552,29 @@ public class AnormousSession
 
 			syncClassAndTableSchema(mapping);
 
-			ContentValues values = mapper.beanToValues(bean);
+			SQLiteStatement statement = compiledStatement(bean.getClass(), Operation.INSERT, null);
 
-			Property property = mapping.getIdMapping().getProperty();
+			mapper.bindToStatement(statement, bean);
 
-			Long rowId = db.insert(mapping.getMappedTableName(), null, values);
+			long rowId;
 
-			if (rowId != null && rowId != -1)
+			try
+			{
+				rowId = statement.executeInsert();
+			}
+			catch (SQLException ex)
 			{
-				List<?> result = select(mapping.getEntityClass(), "rowid = ?", new String[] { rowId.toString() });
+				// Same contract as SQLiteDatabase.insert, failures are logged
+				// and reported as -1
+				Logger.e(TAG, "Error inserting " + bean, ex);
 
-				if (result.size() > 0)
-				{
-					property.setValueTo(bean, property.getValueFrom(bean));
-				}
+				return -1;
 			}
+
+			assignGeneratedId(mapping, bean, rowId);
+			written(mapping, bean);
+
+			return rowId;
 		}
 		catch (AnormousException ex)
 		{
@@ -257,27 +590,25 @@ public class AnormousSession
 		}
 	}
 
+	public BatchResult saveAll(Collection<?> beans) throws AnormousException
+	{
+		return saveAll(beans, DEFAULT_BATCH_SIZE);
+	}
+
+	public synchronized BatchResult saveAll(Iterable<?> beans, int batchSize) throws AnormousException
+	{
+		return executeBatch(beans, batchSize, new InsertWriter(), "insert");
+	}
+
 	public synchronized void saveOrUpdate(Object bean) throws AnormousException
 	{
 		boolean opened = false;
+
 		try
 		{
 			opened = autoOpen(WRITE);
 
-			EntityMapping<?> mapping = mapper.mapClass(bean.getClass());
-
-			syncClassAndTableSchema(mapping);
-
-			Property property = mapping.getIdMapping().getProperty();
-
-			if (alreadyExists(mapping, property.getValueFrom(bean)))
-			{
-				update(bean);
-			}
-			else
-			{
-				save(bean);
-			}
+			new UpsertWriter().write(bean);
 		}
 		catch (AnormousException ex)
 		{
@@ -293,58 +624,71 @@ public class AnormousSession
 		}
 	}
 
-	@SuppressWarnings("unused")
-	private void enforceUniqueConstraint(Object bean, EntityMapping<?> mapping) throws AnormousException, DuplicateKeyViolationException
+	public BatchResult saveOrUpdateAll(Collection<?> beans) throws AnormousException
 	{
-		if (mapping.getIdMapping() != null && mapping.getIdMapping().isEnforce())
+		return saveOrUpdateAll(beans, DEFAULT_BATCH_SIZE);
+	}
+
+	public synchronized BatchResult saveOrUpdateAll(Iterable<?> beans, int batchSize) throws AnormousException
+	{
+		return executeBatch(beans, batchSize, new UpsertWriter(), "upsert");
+	}
+
+	private BatchResult executeBatch(Iterable<?> beans, int batchSize, BatchWriter writer, String operation) throws AnormousException
+	{
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1, found : " + batchSize);
+
+		BatchResult result = new BatchResult();
+
+		boolean opened = false;
+		boolean transactionStarted = false;
+
+		try
 		{
-			Object objectId;
+			opened = autoOpen(WRITE);
 
-			try
+			if (!inTransaction)
 			{
-				objectId = mapping.getIdMapping().getProperty().getValueFrom(bean);
+				begin();
+				transactionStarted = true;
 			}
-			catch (IllegalArgumentException e)
-			{
-				Logger.e(this.getClass().toString(), "Error occured while performing insertion", e);
 
-				throw new AnormousException("Error occured while performing insertion", e);
-			}
-			catch (IllegalAccessException e)
-			{
-				Logger.e(this.getClass().toString(), "Error occured while performing insertion", e);
+			int batchCount = 0;
+			long batchStart = System.nanoTime();
 
-				throw new AnormousException("Error occured while performing insertion", e);
-			}
-			catch (InvocationTargetException e)
+			for (Object bean : beans)
 			{
-				Logger.e(this.getClass().toString(), "Error occured while performing insertion", e);
+				writer.write(bean);
 
-				throw new AnormousException("Error occured while performing insertion", e);
-			}
+				if (++batchCount == batchSize)
+				{
+					long elapsed = System.nanoTime() - batchStart;
 
-			if (alreadyExists(mapping, objectId))
-				throw new DuplicateKeyViolationException("Duplicate records for class : " + mapping.getEntityClass() + " with id : " + objectId);
-		}
-	}
+					result.addBatch(batchCount, elapsed);
 
-	public synchronized <T> T update(T bean, String whereClause, String[] whereArgs) throws AnormousException
-	{
-		try
-		{
-			boolean opened = autoOpen(WRITE);
+					Logger.d(TAG, "Batch " + operation + " of " + batchCount + " rows took " + (elapsed / 1000000L) + " ms");
 
-			EntityMapping<?> mapping = mapper.mapClass(bean.getClass());
+					batchCount = 0;
+					batchStart = System.nanoTime();
+				}
+			}
 
-			ContentValues values = mapper.beanToValues(bean);
+			if (batchCount > 0)
+			{
+				result.addBatch(batchCount, System.nanoTime() - batchStart);
+			}
 
-			whereClause = mapper.forwardMapColumnNames(whereClause, bean.getClass());
+			if (transactionStarted)
+			{
+				transactionStarted = false;
 
-			db.update(mapping.getMappedTableName(), values, whereClause, whereArgs);
+				end();
+			}
 
-			autoClose(opened);
+			Logger.i(TAG, "Batch " + operation + " finished : " + result);
 
-			return bean;
+			return result;
 		}
 		catch (AnormousException ex)
 		{
@@ -352,55 +696,458 @@ public class AnormousSession
 		}
 		catch (Exception ex)
 		{
-			throw new AnormousException("Database update operation failed", ex);
+			throw new AnormousException("Database batch " + operation + " operation failed", ex);
+		}
+		finally
+		{
+			if (transactionStarted)
+				rollback();
+
+			autoClose(opened);
 		}
 	}
 
-	public synchronized <T> T update(T bean) throws AnormousException
+	private interface BatchWriter
 	{
-		try
+		void write(Object bean) throws Exception;
+	}
+
+	private class InsertWriter implements BatchWriter
+	{
+		@Override
+		public void write(Object bean) throws Exception
 		{
 			EntityMapping<?> mapping = mapper.mapClass(bean.getClass());
 
-			if (mapping.getIdMapping() != null)
-			{
-				String value;
+			syncClassAndTableSchema(mapping);
 
-				try
-				{
-					value = mapping.getIdMapping().getProperty().getValueFrom(bean).toString();
-				}
-				catch (IllegalArgumentException e)
-				{
-					throw new AnormousException("Error resolving bean id value", e);
-				}
-				catch (IllegalAccessException e)
+			SQLiteStatement statement = compiledStatement(bean.getClass(), Operation.INSERT, null);
+
+			mapper.bindToStatement(statement, bean);
+
+			assignGeneratedId(mapping, bean, statement.executeInsert());
+			written(mapping, bean);
+		}
+	}
+
+	private class UpsertWriter extends InsertWriter
+	{
+		@Override
+		public void write(Object bean) throws Exception
+		{
+			EntityMapping<?> mapping = mapper.mapClass(bean.getClass());
+			IdColumnMapping idMapping = mapping.getIdMapping();
+
+			if (idMapping == null)
+				throw new AnormousException("Error saving object, can not find an id mapping for the entity");
+
+			syncClassAndTableSchema(mapping);
+
+			Object id = idMapping.getProperty().getValueFrom(bean);
+
+			if (id == null)
+			{
+				super.write(bean);
+			}
+			else if (isRowIdAlias(mapping) && isUpsertSupported())
+			{
+				// ON CONFLICT needs a unique constraint on the id, which is
+				// only declared for INTEGER PRIMARY KEY ids
+				SQLiteStatement statement = compiledStatement(bean.getClass(), Operation.UPSERT, null);
+
+				mapper.bindToStatement(statement, bean);
+				statement.execute();
+
+				written(mapping, bean);
+			}
+			else
+			{
+				SQLiteStatement statement = compiledStatement(bean.getClass(), Operation.UPDATE, idMapping.getColumnName() + " = ?");
+
+				mapper.bindToStatement(statement, bean);
+				statement.bindString(mapping.getColumnCount() + 1, id.toString());
+				statement.execute();
+
+				if (compiledStatement(null, Operation.RAW, "SELECT changes()").simpleQueryForLong() == 0)
 				{
-					throw new AnormousException("Error resolving bean id value", e);
+					super.write(bean);
 				}
-				catch (InvocationTargetException e)
+				else
 				{
-					throw new AnormousException("Error resolving bean id value", e);
+					written(mapping, bean);
 				}
+			}
+		}
+	}
+
+	private SQLiteStatement compiledStatement(Class<?> entityClass, Operation operation, String shape) throws AnormousException
+	{
+		SQLiteStatement statement = statementCache.get(entityClass, operation, shape);
 
-				return update(bean, mapping.getIdMapping().getColumnName() + " = ?", new String[] { value });
+		if (statement == null)
+		{
+			String sql;
+
+			switch (operation)
+			{
+				case INSERT:
+					sql = mapper.generateInsertStatement(entityClass);
+					break;
+				case UPSERT:
+					sql = mapper.generateUpsertStatement(entityClass);
+					break;
+				case UPDATE:
+					sql = mapper.generateUpdateStatement(entityClass, shape);
+					break;
+				case DELETE:
+					sql = mapper.generateDeleteStatement(entityClass, shape);
+					break;
+				default:
+					sql = shape;
+			}
+
+			statement = db.compileStatement(sql);
+
+			statementCache.put(entityClass, operation, shape, statement);
+		}
+		else
+		{
+			statement.clearBindings();
+		}
+
+		return statement;
+	}
+
+	private void bindArguments(SQLiteStatement statement, int startIndex, String[] args)
+	{
+		if (args == null)
+			return;
+
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i] == null)
+			{
+				statement.bindNull(startIndex + i);
 			}
 			else
 			{
-				throw new AnormousException("Error updating object, can not find an id mapping for the entity");
+				statement.bindString(startIndex + i, args[i]);
 			}
 		}
-		catch (AnormousException ex)
+	}
+
+	private void assignGeneratedId(EntityMapping<?> mapping, Object bean, long rowId) throws Exception
+	{
+		IdColumnMapping idMapping = mapping.getIdMapping();
+
+		// Only rowid alias ids are generated by SQLite, anything else was
+		// supplied by the bean itself and the caller gets the rowid back
+		if (idMapping == null || !idMapping.getProperty().isWritable() || !isRowIdAlias(mapping))
+			return;
+
+		Property property = idMapping.getProperty();
+		Class<?> type = property.getType();
+		Object value;
+
+		if (type.equals(Long.class) || type.equals(Long.TYPE))
 		{
-			throw ex;
+			value = rowId;
 		}
-		catch (Exception ex)
+		else if (type.equals(Integer.class) || type.equals(Integer.TYPE))
 		{
-			throw new AnormousException("Database update operation failed", ex);
+			value = (int) rowId;
+		}
+		else if (type.equals(Short.class) || type.equals(Short.TYPE))
+		{
+			value = (short) rowId;
+		}
+		else if (type.equals(Byte.class) || type.equals(Byte.TYPE))
+		{
+			value = (byte) rowId;
+		}
+		else if (type.equals(String.class))
+		{
+			value = String.valueOf(rowId);
+		}
+		else
+		{
+			return;
 		}
+
+		property.setValueTo(bean, value);
 	}
 
-	public synchronized void delete(Object bean, String whereClause, String[] whereArgs) throws AnormousException
+	private void written(EntityMapping<?> mapping, Object bean) throws Exception
+	{
+		tableWritten(mapping.getMappedTableName());
+
+		if (mapping.getIdMapping() == null)
+			return;
+
+		Object id = mapping.getIdMapping().getProperty().getValueFrom(bean);
+
+		if (id == null)
+			return;
+
+		IdentityMap map = transactionIdentityMap();
+
+		if (map != null)
+			map.put(mapping.getEntityClass(), id, bean);
+
+		invalidateCached(mapping.getEntityClass(), id);
+	}
+
+	private void removed(EntityMapping<?> mapping, Object id)
+	{
+		tableWritten(mapping.getMappedTableName());
+
+		IdentityMap map = identityMap;
+
+		if (map != null)
+			map.remove(mapping.getEntityClass(), id);
+
+		invalidateCached(mapping.getEntityClass(), id);
+	}
+
+	private void forget(Class<?> entityClass) throws AnormousException
+	{
+		tableWritten(mapper.mapClass(entityClass).getMappedTableName());
+
+		IdentityMap map = identityMap;
+
+		if (map != null)
+			map.evict(entityClass);
+
+		invalidateCached(entityClass, null);
+	}
+
+	private void invalidateCached(Class<?> entityClass, Object id)
+	{
+		EntityCache cache = entityCache;
+
+		if (cache == null || (entityClass != null && !cache.isCacheable(entityClass)))
+			return;
+
+		if (entityClass == null)
+		{
+			cache.clear();
+		}
+		else if (id == null)
+		{
+			cache.evict(entityClass);
+		}
+		else
+		{
+			cache.remove(entityClass, id);
+		}
+
+		// Pooled readers keep seeing the old row until the transaction
+		// commits, and may put it back into the cache in the meantime
+		if (inTransaction)
+		{
+			if (pendingInvalidations.containsKey(entityClass) && pendingInvalidations.get(entityClass) == null)
+				return;
+
+			if (entityClass == null || id == null)
+			{
+				pendingInvalidations.put(entityClass, null);
+			}
+			else
+			{
+				Set<Object> ids = pendingInvalidations.get(entityClass);
+
+				if (ids == null)
+				{
+					ids = new HashSet<Object>();
+					pendingInvalidations.put(entityClass, ids);
+				}
+
+				ids.add(id);
+			}
+		}
+	}
+
+	private void recordShape(EntityMapping<?> mapping, String kind, String whereClause, String[] whereArgs, long start)
+	{
+		IndexAdvisor advisor = indexAdvisor;
+
+		if (advisor != null)
+			advisor.record(mapping, kind, whereClause, null, whereArgs, System.nanoTime() - start);
+	}
+
+	private void tableWritten(String tableName)
+	{
+		QueryResultCache cache = queryResultCache;
+
+		if (cache == null)
+			return;
+
+		if (tableName == null)
+			cache.clear();
+		else
+			cache.invalidateTable(tableName);
+
+		// Same as the entity cache, pooled readers may store results read
+		// before the transaction commits
+		if (inTransaction)
+			pendingTables.add(tableName);
+	}
+
+	private void applyPendingInvalidations()
+	{
+		QueryResultCache resultCache = queryResultCache;
+
+		if (resultCache != null)
+		{
+			if (pendingTables.contains(null))
+			{
+				resultCache.clear();
+			}
+			else
+			{
+				for (String tableName : pendingTables)
+				{
+					resultCache.invalidateTable(tableName);
+				}
+			}
+		}
+
+		pendingTables.clear();
+
+		EntityCache cache = entityCache;
+
+		if (cache != null)
+		{
+			for (Map.Entry<Class<?>, Set<Object>> pending : pendingInvalidations.entrySet())
+			{
+				if (pending.getKey() == null)
+				{
+					cache.clear();
+				}
+				else if (pending.getValue() == null)
+				{
+					cache.evict(pending.getKey());
+				}
+				else
+				{
+					for (Object id : pending.getValue())
+					{
+						cache.remove(pending.getKey(), id);
+					}
+				}
+			}
+		}
+
+		pendingInvalidations.clear();
+	}
+
+	private Object[] disassemble(EntityMapping<?> mapping, Object bean) throws Exception
+	{
+		Object[] state = new Object[mapping.getColumnCount()];
+
+		for (int i = 0; i < state.length; i++)
+		{
+			state[i] = copyValue(mapping.getColumn(i).getProperty().getValueFrom(bean));
+		}
+
+		return state;
+	}
+
+	private <T> T assemble(EntityMapping<T> mapping, Object[] state) throws Exception
+	{
+		T bean = mapping.newInstance();
+
+		for (int i = 0; i < state.length; i++)
+		{
+			Property property = mapping.getColumn(i).getProperty();
+
+			if (property.isWritable() && (state[i] != null || !property.getType().isPrimitive()))
+				property.setValueTo(bean, copyValue(state[i]));
+		}
+
+		return bean;
+	}
+
+	// Cached state is shared between lookups, mutable values are copied on
+	// the way in and out
+	private static Object copyValue(Object value)
+	{
+		if (value instanceof Date)
+			return new Date(((Date) value).getTime());
+
+		if (value instanceof byte[])
+			return ((byte[]) value).clone();
+
+		return value;
+	}
+
+	// Only the thread of the running transaction sees the map, so no bean
+	// is shared with other threads or outlives the transaction
+	private IdentityMap transactionIdentityMap()
+	{
+		IdentityMap map = identityMap;
+
+		if (map != null && inTransaction && transactionThread == Thread.currentThread())
+			return map;
+
+		return null;
+	}
+
+	private void clearIdentityMap()
+	{
+		IdentityMap map = identityMap;
+
+		if (map != null)
+			map.clear();
+	}
+
+	@SuppressWarnings("unused")
+	private void enforceUniqueConstraint(Object bean, EntityMapping<?> mapping) throws AnormousException, DuplicateKeyViolationException
+	{
+		if (mapping.getIdMapping() != null && mapping.getIdMapping().isEnforce())
+		{
+			Object objectId;
+
+			try
+			{
+				objectId = mapping.getIdMapping().getProperty().getValueFrom(bean);
+			}
+			catch (IllegalArgumentException e)
+			{
+				Logger.e(this.getClass().toString(), "Error occured while performing insertion", e);
+
+				throw new AnormousException("Error occured while performing insertion", e);
+			}
+			catch (IllegalAccessException e)
+			{
+				Logger.e(this.getClass().toString(), "Error occured while performing insertion", e);
+
+				throw new AnormousException("Error occured while performing insertion", e);
+			}
+			catch (InvocationTargetException e)
+			{
+				Logger.e(this.getClass().toString(), "Error occured while performing insertion", e);
+
+				throw new AnormousException("Error occured while performing insertion", e);
+			}
+
+			if (alreadyExists(mapping, objectId))
+				throw new DuplicateKeyViolationException("Duplicate records for class : " + mapping.getEntityClass() + " with id : " + objectId);
+		}
+	}
+
+	public synchronized <T> T update(T bean, String whereClause, String[] whereArgs) throws AnormousException
+	{
+		updateWhere(bean, whereClause, whereArgs);
+
+		// Any number of rows may have changed, none of them through the
+		// instances in the identity map
+		forget(bean.getClass());
+
+		return bean;
+	}
+
+	private <T> T updateWhere(T bean, String whereClause, String[] whereArgs) throws AnormousException
 	{
 		try
 		{
@@ -408,11 +1155,25 @@ public class AnormousSession
 
 			EntityMapping<?> mapping = mapper.mapClass(bean.getClass());
 
-			whereClause = mapper.forwardMapColumnNames(whereClause, bean.getClass());
+			if (whereClause != null)
+			{
+				whereClause = mapper.forwardMapColumnNames(whereClause, bean.getClass());
+			}
+
+			SQLiteStatement statement = compiledStatement(bean.getClass(), Operation.UPDATE, whereClause);
+
+			mapper.bindToStatement(statement, bean);
+			bindArguments(statement, mapping.getColumnCount() + 1, whereArgs);
 
-			db.delete(mapping.getMappedTableName(), whereClause, whereArgs);
+			long start = System.nanoTime();
+
+			statement.execute();
+
+			recordShape(mapping, "UPDATE", whereClause, whereArgs, start);
 
 			autoClose(opened);
+
+			return bean;
 		}
 		catch (AnormousException ex)
 		{
@@ -420,11 +1181,11 @@ public class AnormousSession
 		}
 		catch (Exception ex)
 		{
-			throw new AnormousException("Database delete operation failed", ex);
+			throw new AnormousException("Database update operation failed", ex);
 		}
 	}
 
-	public synchronized void delete(Object bean) throws AnormousException
+	public synchronized <T> T update(T bean) throws AnormousException
 	{
 		try
 		{
@@ -448,15 +1209,462 @@ public class AnormousSession
 				}
 				catch (InvocationTargetException e)
 				{
-					throw new AnormousException("Error resolving bean id value", e);
+					throw new AnormousException("Error resolving bean id value", e);
+				}
+
+				updateWhere(bean, mapping.getIdMapping().getColumnName() + " = ?", new String[] { value });
+				written(mapping, bean);
+
+				return bean;
+			}
+			else
+			{
+				throw new AnormousException("Error updating object, can not find an id mapping for the entity");
+			}
+		}
+		catch (AnormousException ex)
+		{
+			throw ex;
+		}
+		catch (Exception ex)
+		{
+			throw new AnormousException("Database update operation failed", ex);
+		}
+	}
+
+	public synchronized void delete(Object bean, String whereClause, String[] whereArgs) throws AnormousException
+	{
+		deleteWhere(bean, whereClause, whereArgs);
+		forget(bean.getClass());
+	}
+
+	private void deleteWhere(Object bean, String whereClause, String[] whereArgs) throws AnormousException
+	{
+		try
+		{
+			boolean opened = autoOpen(WRITE);
+
+			if (whereClause != null)
+			{
+				whereClause = mapper.forwardMapColumnNames(whereClause, bean.getClass());
+			}
+
+			SQLiteStatement statement = compiledStatement(bean.getClass(), Operation.DELETE, whereClause);
+
+			bindArguments(statement, 1, whereArgs);
+
+			long start = System.nanoTime();
+
+			statement.execute();
+
+			recordShape(mapper.mapClass(bean.getClass()), "DELETE", whereClause, whereArgs, start);
+
+			autoClose(opened);
+		}
+		catch (AnormousException ex)
+		{
+			throw ex;
+		}
+		catch (Exception ex)
+		{
+			throw new AnormousException("Database delete operation failed", ex);
+		}
+	}
+
+	public synchronized void delete(Object bean) throws AnormousException
+	{
+		try
+		{
+			EntityMapping<?> mapping = mapper.mapClass(bean.getClass());
+
+			if (mapping.getIdMapping() != null)
+			{
+				String value;
+
+				try
+				{
+					value = mapping.getIdMapping().getProperty().getValueFrom(bean).toString();
+				}
+				catch (IllegalArgumentException e)
+				{
+					throw new AnormousException("Error resolving bean id value", e);
+				}
+				catch (IllegalAccessException e)
+				{
+					throw new AnormousException("Error resolving bean id value", e);
+				}
+				catch (InvocationTargetException e)
+				{
+					throw new AnormousException("Error resolving bean id value", e);
+				}
+
+				deleteWhere(bean, mapping.getIdMapping().getColumnName() + " = ?", new String[] { value });
+
+				removed(mapping, value);
+			}
+			else
+			{
+				throw new AnormousException("Error updating object, can not find an id mapping for the entity");
+			}
+		}
+		catch (AnormousException ex)
+		{
+			throw ex;
+		}
+		catch (Exception ex)
+		{
+			throw new AnormousException("Database delete operation failed", ex);
+		}
+	}
+
+	public synchronized void executeUpdate(String sql) throws AnormousException
+	{
+		try
+		{
+			boolean opened = autoOpen(WRITE);
+
+			db.execSQL(sql);
+
+			clearIdentityMap();
+			invalidateCached(null, null);
+
+			Set<String> tables = QueryResultCache.writtenTables(sql);
+
+			if (tables == null)
+			{
+				tableWritten(null);
+			}
+			else
+			{
+				for (String tableName : tables)
+				{
+					tableWritten(tableName);
+				}
+			}
+
+			autoClose(opened);
+
+		}
+		catch (AnormousException ex)
+		{
+			throw ex;
+		}
+		catch (Exception ex)
+		{
+			throw new AnormousException("Database update operation failed", ex);
+		}
+	}
+
+	public List<String[]> rawQuery(String sql, String[] selectionArgs) throws AnormousException
+	{
+		ConnectionPool pool = readerPool();
+
+		if (pool != null)
+		{
+			SQLiteDatabase reader = pool.acquireReader();
+
+			try
+			{
+				return rawQuery(reader, sql, selectionArgs);
+			}
+			finally
+			{
+				pool.releaseReader(reader);
+			}
+		}
+
+		synchronized (this)
+		{
+			boolean opened = false;
+
+			try
+			{
+				opened = autoOpen(READ);
+
+				return rawQuery(db, sql, selectionArgs);
+			}
+			finally
+			{
+				autoClose(opened);
+			}
+		}
+	}
+
+	private List<String[]> rawQuery(SQLiteDatabase connection, String sql, String[] selectionArgs) throws AnormousException
+	{
+		Cursor cursor = null;
+
+		try
+		{
+			cursor = connection.rawQuery(sql, selectionArgs);
+
+			List<String[]> result = new ArrayList<String[]>();
+
+			while (cursor.moveToNext())
+			{
+				String[] resultArray = new String[cursor.getColumnCount()];
+
+				for (int i = 0; i < resultArray.length; i++)
+				{
+					resultArray[i] = cursor.getString(i);
+				}
+
+				result.add(resultArray);
+			}
+
+			return result;
+		}
+		catch (Exception ex)
+		{
+			throw new AnormousException("Database query operation failed", ex);
+		}
+		finally
+		{
+			if (cursor != null)
+				cursor.close();
+		}
+	}
+
+	public <T> List<T> select(boolean distinct, Class<T> entityClass) throws AnormousException
+	{
+		return select(distinct, entityClass, null, null, null, null, null, null);
+	}
+
+	public <T> List<T> select(boolean distinct, Class<T> entityClass, Object id) throws AnormousException
+	{
+		IdentityMap map = transactionIdentityMap();
+
+		if (map != null)
+		{
+			Object bean = map.get(entityClass, id);
+
+			if (bean != null)
+			{
+				List<T> result = new ArrayList<T>(1);
+				result.add(entityClass.cast(bean));
+
+				return result;
+			}
+		}
+
+		EntityCache cache = entityCache;
+
+		if (cache != null && !cache.isCacheable(entityClass))
+			cache = null;
+
+		try
+		{
+			if (cache != null)
+			{
+				Object[] state = cache.get(entityClass, id);
+
+				if (state != null)
+				{
+					T bean = assemble(mapper.mapClass(entityClass), state);
+
+					if (map != null)
+						map.put(entityClass, id, bean);
+
+					List<T> result = new ArrayList<T>(1);
+					result.add(bean);
+
+					return result;
+				}
+			}
+
+			long versionSeen = cache != null ? cache.version(entityClass) : 0;
+			List<T> result = select(distinct, entityClass, "Id = ?", new String[] { id + "" }, null, null, null, null);
+
+			if (result != null && result.size() == 1)
+			{
+				if (map != null)
+					map.put(entityClass, id, result.get(0));
+
+				if (cache != null)
+					cache.put(entityClass, id, disassemble(mapper.mapClass(entityClass), result.get(0)), versionSeen);
+			}
+
+			return result;
+		}
+		catch (AnormousException ex)
+		{
+			throw ex;
+		}
+		catch (Exception ex)
+		{
+			throw new AnormousException("Error reading cached bean of " + entityClass, ex);
+		}
+	}
+
+	public <T> List<T> select(boolean distinct, Class<T> entityClass, String whereClause, String whereArgs[]) throws AnormousException
+	{
+		return select(distinct, entityClass, whereClause, whereArgs, null, null, null, null);
+	}
+
+	public <T> List<T> select(boolean distinct, Class<T> entityClass, String whereClause, String whereArgs[], String groupBy, String having) throws AnormousException
+	{
+		return select(distinct, entityClass, whereClause, whereArgs, groupBy, having, null, null);
+	}
+
+	public <T> List<T> select(boolean distinct, Class<T> entityClass, String whereClause, String whereArgs[], String groupBy, String having, String orderBy) throws AnormousException
+	{
+		return select(distinct, entityClass, whereClause, whereArgs, groupBy, having, orderBy, null);
+	}
+
+	public <T> List<T> select(Class<T> entityClass) throws AnormousException
+	{
+		return select(false, entityClass, null, null, null, null, null, null);
+	}
+
+	public <T> List<T> select(Class<T> entityClass, Object id) throws AnormousException
+	{
+		return select(false, entityClass, id);
+	}
+
+	public <T> List<T> select(Class<T> entityClass, String whereClause, String whereArgs[]) throws AnormousException
+	{
+		return select(false, entityClass, whereClause, whereArgs, null, null, null, null);
+	}
+
+	public <T> List<T> select(Class<T> entityClass, String whereClause, String whereArgs[], String groupBy, String having) throws AnormousException
+	{
+		return select(false, entityClass, whereClause, whereArgs, groupBy, having, null, null);
+	}
+
+	public <T> List<T> select(Class<T> entityClass, String whereClause, String[] whereArgs, String groupBy, String having, String orderBy) throws AnormousException
+	{
+		return select(false, entityClass, whereClause, whereArgs, groupBy, having, orderBy, null);
+	}
+
+	public <T> List<T> select(Class<T> entityClass, String whereClause, String[] whereArgs, String groupBy, String having, String orderBy, String limit) throws AnormousException
+	{
+		return select(false, entityClass, whereClause, whereArgs, groupBy, having, orderBy, limit);
+	}
+
+	public <T> List<T> select(boolean distinct, Class<T> entityClass, String whereClause, String[] whereArgs, String groupBy, String having, String orderBy, String limit) throws AnormousException
+	{
+		QueryPlan<T> plan = queryPlan(entityClass, distinct, whereClause, groupBy, having, orderBy);
+
+		QueryResultCache resultCache = queryResultCache;
+
+		if (resultCache == null)
+			return select(plan, whereArgs, limit);
+
+		EntityMapping<T> mapping = mapper.mapClass(entityClass);
+		String key = QueryResultCache.key(plan, whereArgs, limit);
+
+		try
+		{
+			List<Object[]> rows = resultCache.get(key);
+
+			if (rows != null)
+			{
+				List<T> result = new ArrayList<T>(rows.size());
+
+				for (Object[] state : rows)
+				{
+					result.add(assemble(mapping, state));
+				}
+
+				return result;
+			}
+
+			Set<String> tables = QueryResultCache.readTables(plan);
+			long version = resultCache.version(tables);
+			List<T> result = select(plan, whereArgs, limit);
+			List<Object[]> states = new ArrayList<Object[]>(result.size());
+
+			for (T bean : result)
+			{
+				states.add(disassemble(mapping, bean));
+			}
+
+			resultCache.put(key, tables, states, version);
+
+			return result;
+		}
+		catch (AnormousException ex)
+		{
+			throw ex;
+		}
+		catch (Exception ex)
+		{
+			throw new AnormousException("Database select operation failed", ex);
+		}
+	}
+
+	private <T> List<T> select(QueryPlan<T> plan, String[] whereArgs, String limit) throws AnormousException
+	{
+		IndexAdvisor advisor = indexAdvisor;
+
+		if (advisor == null)
+			return selectFromDatabase(plan, whereArgs, limit);
+
+		long start = System.nanoTime();
+		List<T> result = selectFromDatabase(plan, whereArgs, limit);
+
+		advisor.record(mapper.mapClass(plan.getEntityClass()), "SELECT", plan.getWhereClause(), plan.getOrderBy(), whereArgs, System.nanoTime() - start);
+
+		return result;
+	}
+
+	private <T> List<T> selectFromDatabase(QueryPlan<T> plan, String[] whereArgs, String limit) throws AnormousException
+	{
+		ConnectionPool pool = readerPool();
+
+		if (pool != null)
+		{
+			SQLiteDatabase reader = pool.acquireReader();
+
+			try
+			{
+				return select(reader, plan, whereArgs, limit);
+			}
+			finally
+			{
+				pool.releaseReader(reader);
+			}
+		}
+
+		synchronized (this)
+		{
+			boolean opened = false;
+
+			try
+			{
+				opened = autoOpen(READ);
+
+				return select(db, plan, whereArgs, limit);
+			}
+			finally
+			{
+				autoClose(opened);
+			}
+		}
+	}
+
+	private <T> List<T> select(SQLiteDatabase connection, QueryPlan<T> plan, String[] whereArgs, String limit) throws AnormousException
+	{
+		List<T> result = new ArrayList<T>();
+
+		Cursor cursor = query(connection, plan, whereArgs, limit);
+
+		if (cursor == null)
+			return result;
+
+		try
+		{
+			while (cursor.moveToNext())
+			{
+				T objBean = mapper.valuesToBean(cursor, plan);
+
+				if (objBean != null)
+				{
+					result.add(objBean);
 				}
-
-				delete(bean, mapping.getIdMapping().getColumnName() + " = ?", new String[] { value });
-			}
-			else
-			{
-				throw new AnormousException("Error updating object, can not find an id mapping for the entity");
 			}
+
+			return result;
 		}
 		catch (AnormousException ex)
 		{
@@ -464,210 +1672,532 @@ public class AnormousSession
 		}
 		catch (Exception ex)
 		{
-			throw new AnormousException("Database delete operation failed", ex);
+			throw new AnormousException("Database select operation failed", ex);
+		}
+		finally
+		{
+			cursor.close();
 		}
 	}
 
-	public synchronized void executeUpdate(String sql) throws AnormousException
+	public <T> Page<T> selectPage(Class<T> entityClass, String orderProperty, int pageSize, String continuationToken) throws AnormousException
 	{
-		try
-		{
-			boolean opened = autoOpen(WRITE);
+		return selectPage(entityClass, null, null, orderProperty, true, pageSize, continuationToken);
+	}
 
-			db.execSQL(sql);
+	public <T> Page<T> selectPage(Class<T> entityClass, String whereClause, String[] whereArgs, String orderProperty, boolean ascending, int pageSize, String continuationToken) throws AnormousException
+	{
+		if (pageSize < 1)
+			throw new IllegalArgumentException("Page size must be at least 1, found : " + pageSize);
 
-			autoClose(opened);
+		EntityMapping<T> mapping = mapper.mapClass(entityClass);
 
-		}
-		catch (AnormousException ex)
+		if (mapping.getIdMapping() == null)
+			throw new AnormousException("Error paging entity, can not find an id mapping for the entity : " + entityClass);
+
+		Property orderBy = null;
+
+		for (int i = 0; i < mapping.getColumnCount(); i++)
 		{
-			throw ex;
+			if (mapping.getColumn(i).getProperty().getName().equals(orderProperty))
+				orderBy = mapping.getColumn(i).getProperty();
 		}
-		catch (Exception ex)
+
+		if (orderBy == null)
+			throw new AnormousException("Error paging entity, property " + orderProperty + " is not mapped for the entity : " + entityClass);
+
+		// Predicates are written with property names, the same way callers
+		// write theirs, so they go through forwardMapColumnNames in select
+		Property id = mapping.getIdMapping().getProperty();
+		boolean orderedById = orderBy.equals(id);
+		String direction = ascending ? " ASC" : " DESC";
+		String order = orderedById ? id.getName() + direction : orderBy.getName() + direction + ", " + id.getName() + direction;
+
+		StringBuilder where = new StringBuilder();
+		List<String> args = new ArrayList<String>();
+
+		if (whereClause != null && whereClause.length() > 0)
 		{
-			throw new AnormousException("Database update operation failed", ex);
+			where.append("(").append(whereClause).append(")");
+
+			if (whereArgs != null)
+				args.addAll(Arrays.asList(whereArgs));
 		}
-	}
 
-	public synchronized List<String[]> rawQuery(String sql, String[] selectionArgs) throws AnormousException
-	{
-		try
+		if (continuationToken != null)
 		{
-			boolean opened = autoOpen(READ);
+			String[] fields = Page.decodeToken(continuationToken, 5);
 
-			Cursor cursor = db.rawQuery(sql, selectionArgs);
+			if (!entityClass.getName().equals(fields[0]) || !orderProperty.equals(fields[1]) || !String.valueOf(ascending).equals(fields[2]))
+				throw new AnormousException("Continuation token was not created for this entity and ordering");
 
-			List<String[]> result = new ArrayList<String[]>();
+			String lastValue = fromTokenValue(fields[3]);
+			String lastId = fromTokenValue(fields[4]);
+			String comparison = ascending ? " > ?" : " < ?";
 
-			while (cursor.moveToNext())
+			if (where.length() > 0)
+				where.append(" AND ");
+
+			if (orderedById)
 			{
-				String[] resultArray = new String[cursor.getColumnCount()];
+				where.append(id.getName() + comparison);
+				args.add(lastId);
+			}
+			else if (lastValue != null)
+			{
+				// NULLs sort first in SQLite, so they come before every value
+				// ascending and after every value descending
+				where.append("(" + orderBy.getName() + comparison + " OR (" + orderBy.getName() + " = ? AND " + id.getName() + comparison + ")" + (ascending ? "" : " OR " + orderBy.getName() + " IS NULL") + ")");
+				args.add(lastValue);
+				args.add(lastValue);
+				args.add(lastId);
+			}
+			else
+			{
+				where.append("((" + orderBy.getName() + " IS NULL AND " + id.getName() + comparison + ")" + (ascending ? " OR " + orderBy.getName() + " IS NOT NULL" : "") + ")");
+				args.add(lastId);
+			}
+		}
 
-				for (int i = 0; i < resultArray.length; i++)
-				{
-					resultArray[i] = cursor.getString(i);
-				}
+		List<T> items = select(false, entityClass, where.length() > 0 ? where.toString() : null, args.isEmpty() ? null : args.toArray(new String[args.size()]), null, null, order, String.valueOf(pageSize + 1));
 
-				result.add(resultArray);
-			}
+		String nextToken = null;
 
-			autoClose(opened);
+		if (items.size() > pageSize)
+		{
+			items = new ArrayList<T>(items.subList(0, pageSize));
 
-			return result;
+			T last = items.get(pageSize - 1);
+
+			try
+			{
+				nextToken = Page.encodeToken(entityClass.getName(), orderProperty, String.valueOf(ascending), toTokenValue(orderBy.getValueFrom(last)), toTokenValue(id.getValueFrom(last)));
+			}
+			catch (AnormousException ex)
+			{
+				throw ex;
+			}
+			catch (Exception ex)
+			{
+				throw new AnormousException("Error creating continuation token", ex);
+			}
 		}
-		catch (AnormousException ex)
+
+		return new Page<T>(items, nextToken);
+	}
+
+	// Floating point keys are kept bit exact, their shortest decimal form
+	// may not read back as the stored value, a float's never does
+	private static String toTokenValue(Object value)
+	{
+		if (value instanceof Float || value instanceof Double)
+			return "D" + Long.toHexString(Double.doubleToLongBits(((Number) value).doubleValue()));
+
+		return toArgument(value);
+	}
+
+	private static String fromTokenValue(String value) throws AnormousException
+	{
+		if (value == null || !value.startsWith("D"))
+			return value;
+
+		try
 		{
-			throw ex;
+			double number = Double.longBitsToDouble(new BigInteger(value.substring(1), 16).longValue());
+
+			// The exact decimal expansion, which SQLite reads back as the
+			// same double
+			return Double.isNaN(number) || Double.isInfinite(number) ? String.valueOf(number) : new BigDecimal(number).toString();
 		}
-		catch (Exception ex)
+		catch (NumberFormatException ex)
 		{
-			throw new AnormousException("Database query operation failed", ex);
+			throw new AnormousException("Invalid continuation token value : " + value, ex);
 		}
 	}
 
-	public synchronized <T> List<T> select(boolean distinct, Class<T> entityClass) throws AnormousException
+	private static String toArgument(Object value)
 	{
-		return select(distinct, entityClass, null, null, null, null, null, null);
+		// Matches the way values are written by the mapper
+		if (value == null)
+			return null;
+		else if (value instanceof Boolean)
+			return ((Boolean) value) ? "1" : "0";
+		else if (value instanceof Date)
+			return String.valueOf(((Date) value).getTime());
+		else
+			return value.toString();
 	}
 
-	public synchronized <T> List<T> select(boolean distinct, Class<T> entityClass, Object id) throws AnormousException
+	public <T> EntityIterator<T> iterate(Class<T> entityClass) throws AnormousException
 	{
-		return select(distinct, entityClass, "Id = ?", new String[] { id + "" }, null, null, null, null);
+		return iterate(false, entityClass, null, null, null, null, null, null);
 	}
 
-	public synchronized <T> List<T> select(boolean distinct, Class<T> entityClass, String whereClause, String whereArgs[]) throws AnormousException
+	public <T> EntityIterator<T> iterate(Class<T> entityClass, String whereClause, String[] whereArgs) throws AnormousException
 	{
-		return select(distinct, entityClass, whereClause, whereArgs, null, null, null, null);
+		return iterate(false, entityClass, whereClause, whereArgs, null, null, null, null);
 	}
 
-	public synchronized <T> List<T> select(boolean distinct, Class<T> entityClass, String whereClause, String whereArgs[], String groupBy, String having) throws AnormousException
+	public <T> EntityIterator<T> iterate(Class<T> entityClass, String whereClause, String[] whereArgs, String orderBy) throws AnormousException
 	{
-		return select(distinct, entityClass, whereClause, whereArgs, groupBy, having, null, null);
+		return iterate(false, entityClass, whereClause, whereArgs, null, null, orderBy, null);
 	}
 
-	public synchronized <T> List<T> select(boolean distinct, Class<T> entityClass, String whereClause, String whereArgs[], String groupBy, String having, String orderBy) throws AnormousException
+	public <T> EntityIterator<T> iterate(boolean distinct, Class<T> entityClass, String whereClause, String[] whereArgs, String groupBy, String having, String orderBy, String limit) throws AnormousException
 	{
-		return select(distinct, entityClass, whereClause, whereArgs, groupBy, having, orderBy, null);
-	}
+		QueryPlan<T> plan = queryPlan(entityClass, distinct, whereClause, groupBy, having, orderBy);
 
-	public synchronized <T> List<T> select(Class<T> entityClass) throws AnormousException
-	{
-		return select(false, entityClass, null, null, null, null, null, null);
+		final ConnectionPool pool = readerPool();
+
+		if (pool != null)
+		{
+			final SQLiteDatabase reader = pool.acquireReader();
+
+			try
+			{
+				Cursor cursor = iterationQuery(reader, plan, whereArgs, limit);
+
+				return new EntityIterator<T>(cursor, plan, mapper, new EntityIterator.Releaser()
+				{
+					@Override
+					public void release()
+					{
+						pool.releaseReader(reader);
+					}
+				});
+			}
+			catch (AnormousException ex)
+			{
+				pool.releaseReader(reader);
+
+				throw ex;
+			}
+		}
+
+		synchronized (this)
+		{
+			final boolean opened = autoOpen(READ);
+
+			try
+			{
+				Cursor cursor = iterationQuery(db, plan, whereArgs, limit);
+
+				openIterators++;
+
+				// The connection stays open until the iterator is closed, so
+				// it is only auto closed from the releaser, and closes by
+				// other threads are deferred until then
+				return new EntityIterator<T>(cursor, plan, mapper, new EntityIterator.Releaser()
+				{
+					@Override
+					public void release()
+					{
+						synchronized (AnormousSession.this)
+						{
+							try
+							{
+								openIterators--;
+
+								autoClose(opened);
+
+								if (openIterators == 0 && closeDeferred)
+								{
+									closeDeferred = false;
+
+									close();
+								}
+							}
+							catch (AnormousException ex)
+							{
+								Logger.w(TAG, "Error closing database after iteration", ex);
+							}
+						}
+					}
+				});
+			}
+			catch (AnormousException ex)
+			{
+				autoClose(opened);
+
+				throw ex;
+			}
+		}
 	}
 
-	public synchronized <T> List<T> select(Class<T> entityClass, Object id) throws AnormousException
+	@SuppressWarnings("unchecked")
+	private <T> QueryPlan<T> queryPlan(Class<T> entityClass, boolean distinct, String whereClause, String groupBy, String having, String orderBy) throws AnormousException
 	{
-		return select(false, entityClass, "Id = ?", new String[] { id + "" }, null, null, null, null);
+		List<Object> key = Arrays.<Object> asList(entityClass, distinct, whereClause, groupBy, having, orderBy);
+
+		QueryPlan<?> plan = queryPlans.get(key);
+
+		if (plan == null)
+		{
+			plan = mapper.compileQueryPlan(entityClass, distinct, whereClause, groupBy, having, orderBy);
+
+			queryPlans.put(key, plan);
+		}
+
+		return (QueryPlan<T>) plan;
 	}
 
-	public synchronized <T> List<T> select(Class<T> entityClass, String whereClause, String whereArgs[]) throws AnormousException
+	// With the advisor enabled the first window is filled before the
+	// iterator is handed out, which iterating would do anyway, so the
+	// recorded time covers running the statement
+	private Cursor iterationQuery(SQLiteDatabase connection, QueryPlan<?> plan, String[] whereArgs, String limit) throws AnormousException
 	{
-		return select(false, entityClass, whereClause, whereArgs, null, null, null, null);
+		IndexAdvisor advisor = indexAdvisor;
+
+		if (advisor == null)
+			return query(connection, plan, whereArgs, limit);
+
+		long start = System.nanoTime();
+		Cursor cursor = query(connection, plan, whereArgs, limit);
+
+		if (cursor != null)
+		{
+			try
+			{
+				cursor.getCount();
+			}
+			catch (RuntimeException ex)
+			{
+				cursor.close();
+
+				throw new AnormousException("Database select operation failed", ex);
+			}
+		}
+
+		advisor.record(mapper.mapClass(plan.getEntityClass()), "SELECT", plan.getWhereClause(), plan.getOrderBy(), whereArgs, System.nanoTime() - start);
+
+		return cursor;
 	}
 
-	public synchronized <T> List<T> select(Class<T> entityClass, String whereClause, String whereArgs[], String groupBy, String having) throws AnormousException
+	private Cursor query(SQLiteDatabase connection, QueryPlan<?> plan, String[] whereArgs, String limit) throws AnormousException
 	{
-		return select(false, entityClass, whereClause, whereArgs, groupBy, having, null, null);
+		try
+		{
+			return connection.query(plan.isDistinct(), plan.getTableName(), plan.getColumns(), plan.getWhereClause(), whereArgs, plan.getGroupBy(), plan.getHaving(), plan.getOrderBy(), limit);
+		}
+		catch (SQLiteException ex)
+		{
+			if (ex.getMessage().contains("no such table"))
+				return null;
+
+			throw new AnormousException("Database select operation failed", ex);
+		}
+		catch (Exception ex)
+		{
+			throw new AnormousException("Database select operation failed", ex);
+		}
 	}
 
-	public synchronized <T> List<T> select(Class<T> entityClass, String whereClause, String[] whereArgs, String groupBy, String having, String orderBy) throws AnormousException
+	private ConnectionPool readerPool()
 	{
-		return select(false, entityClass, whereClause, whereArgs, groupBy, having, orderBy, null);
+		// Reads made while holding the session lock or from inside this
+		// thread's own transaction must see uncommitted writes, so they stay
+		// on the writer connection
+		ConnectionPool pool = connectionPool;
+
+		if (pool != null && pool.isOpen() && !Thread.holdsLock(this) && !(inTransaction && transactionThread == Thread.currentThread()))
+			return pool;
+
+		return null;
 	}
 
-	public synchronized <T> List<T> select(Class<T> entityClass, String whereClause, String[] whereArgs, String groupBy, String having, String orderBy, String limit) throws AnormousException
+	private boolean alreadyExists(EntityMapping<?> mapping, Object id) throws SQLiteException
 	{
-		return select(false, entityClass, whereClause, whereArgs, groupBy, having, orderBy, limit);
+		String tableName = mapping.getMappedTableName();
+
+		Cursor cursor = db.query(tableName, new String[] { mapping.getIdMapping().getColumnName() }, mapping.getIdMapping().getColumnName() + " = ? ", new String[] { id + "" }, null, null, null);
+
+		try
+		{
+			return cursor.moveToFirst();
+		}
+		finally
+		{
+			cursor.close();
+		}
 	}
 
-	public synchronized <T> List<T> select(boolean distinct, Class<T> entityClass, String whereClause, String[] whereArgs, String groupBy, String having, String orderBy, String limit) throws AnormousException
+	/**
+	 * Looks the id column up in the table itself, prebuilt and legacy tables
+	 * may declare an INTEGER id without making it the primary key.
+	 */
+	private boolean isRowIdAlias(EntityMapping<?> mapping)
 	{
-		List<T> result = new ArrayList<T>();
+		IdColumnMapping idMapping = mapping.getIdMapping();
 
-		boolean opened = false;
+		if (idMapping == null || !idMapping.isRowIdAlias())
+			return false;
+
+		Boolean rowIdAlias = mapping.getRowIdAlias();
+
+		if (rowIdAlias != null)
+			return rowIdAlias;
+
+		Cursor cursor = db.rawQuery("PRAGMA table_info(" + mapping.getMappedTableName() + ");", null);
+		int primaryKeyColumns = 0;
+		boolean integerPrimaryKey = false;
 
 		try
 		{
-			opened = autoOpen(READ);
+			if (cursor.getCount() == 0)
+				return true;
+
+			int nameIndex = cursor.getColumnIndex("name");
+			int typeIndex = cursor.getColumnIndex("type");
+			int pkIndex = cursor.getColumnIndex("pk");
+
+			while (cursor.moveToNext())
+			{
+				if (cursor.getInt(pkIndex) > 0)
+				{
+					primaryKeyColumns++;
+
+					if (cursor.getString(nameIndex).equalsIgnoreCase(idMapping.getColumnName()) && "INTEGER".equalsIgnoreCase(cursor.getString(typeIndex)))
+						integerPrimaryKey = true;
+				}
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+
+		rowIdAlias = integerPrimaryKey && primaryKeyColumns == 1;
+		mapping.setRowIdAlias(rowIdAlias);
+
+		return rowIdAlias;
+	}
+
+	private boolean isUpsertSupported() throws AnormousException
+	{
+		if (upsertSupported == null)
+		{
+			upsertSupported = compareVersions(compiledStatement(null, Operation.RAW, "SELECT sqlite_version()").simpleQueryForString(), "3.24.0") >= 0;
+		}
+
+		return upsertSupported;
+	}
 
-			EntityMapping<?> mapping = mapper.mapClass(entityClass);
+	private static int compareVersions(String version, String other)
+	{
+		String[] parts = version.split("\\.");
+		String[] otherParts = other.split("\\.");
 
-			String tableName = mapping.getMappedTableName();
+		for (int i = 0; i < Math.max(parts.length, otherParts.length); i++)
+		{
+			int part = i < parts.length ? Integer.parseInt(parts[i]) : 0;
+			int otherPart = i < otherParts.length ? Integer.parseInt(otherParts[i]) : 0;
 
-			Map<Property, ColumnMapping> mappedColumns = mapping.getMappedColumns();
-			Collection<ColumnMapping> columnMappings = mappedColumns.values();
+			if (part != otherPart)
+				return part < otherPart ? -1 : 1;
+		}
 
-			String[] columns = new String[mappedColumns.size()];
+		return 0;
+	}
 
-			int count = 0;
+	/**
+	 * Creates the tables of the given entity classes that do not exist yet,
+	 * reading the schema once and creating them all in one transaction, so
+	 * the first write of each class no longer has to look for its table.
+	 */
+	public synchronized void bootstrapSchema(Class<?>... entityClasses) throws AnormousException
+	{
+		boolean opened = false;
 
-			for (ColumnMapping columnMapping : columnMappings)
+		try
+		{
+			if (db == null || !db.isOpen())
 			{
-				columns[count++] = columnMapping.getColumnName();
+				open(WRITE);
+				opened = true;
 			}
 
-			if (whereClause != null)
+			Set<String> existingTables = new HashSet<String>();
+			Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table';", null);
+
+			try
 			{
-				whereClause = mapper.forwardMapColumnNames(whereClause, entityClass);
+				while (cursor.moveToNext())
+				{
+					existingTables.add(cursor.getString(0).toLowerCase(Locale.US));
+				}
 			}
-
-			if (groupBy != null)
+			finally
 			{
-				groupBy = mapper.forwardMapColumnNames(groupBy, entityClass);
+				cursor.close();
 			}
 
-			if (having != null)
+			List<EntityMapping<?>> mappings = new ArrayList<EntityMapping<?>>();
+			List<EntityMapping<?>> missing = new ArrayList<EntityMapping<?>>();
+
+			for (Class<?> entityClass : entityClasses)
 			{
-				having = mapper.forwardMapColumnNames(having, entityClass);
+				EntityMapping<?> mapping = mapper.mapClass(entityClass);
+
+				mappings.add(mapping);
+
+				// Also skips a second class mapped to the same table
+				if (existingTables.add(mapping.getMappedTableName().toLowerCase(Locale.US)))
+					missing.add(mapping);
 			}
 
-			if (orderBy != null)
+			if (!missing.isEmpty())
 			{
-				orderBy = mapper.forwardMapColumnNames(orderBy, entityClass);
-			}
+				db.beginTransaction();
 
-			Cursor cursor = db.query(distinct, tableName, columns, whereClause, whereArgs, groupBy, having, orderBy, limit);
+				try
+				{
+					for (EntityMapping<?> mapping : missing)
+					{
+						db.execSQL(mapper.generateCreateTableStatement(mapping.getEntityClass()));
 
-			while (cursor.moveToNext())
-			{
-				T objBean = mapper.valuesToBean(cursor, entityClass);
+						createIndexes(mapping);
+					}
 
-				if (objBean != null)
+					db.setTransactionSuccessful();
+				}
+				finally
 				{
-					result.add(objBean);
+					db.endTransaction();
 				}
+
+				Logger.i(TAG, "Created " + missing.size() + " of " + entityClasses.length + " entity tables");
 			}
 
-			return result;
+			for (EntityMapping<?> mapping : mappings)
+			{
+				mapping.setTableExists(true);
+			}
 		}
 		catch (AnormousException ex)
 		{
 			throw ex;
 		}
-		catch (SQLiteException ex)
-		{
-			if (ex.getMessage().contains("no such table"))
-				return result;
-
-			throw new AnormousException("Database select operation failed", ex);
-		}
 		catch (Exception ex)
 		{
-			throw new AnormousException("Database select operation failed", ex);
+			throw new AnormousException("Error occured while bootstrapping the database schema", ex);
 		}
 		finally
 		{
-			autoClose(opened);
+			if (opened)
+				close();
 		}
 	}
 
-	private boolean alreadyExists(EntityMapping<?> mapping, Object id) throws SQLiteException
+	private void createIndexes(EntityMapping<?> mapping) throws AnormousException
 	{
-		String tableName = mapping.getMappedTableName();
+		for (Map.Entry<String, String> index : mapper.generateCreateIndexStatements(mapping.getEntityClass()).entrySet())
+		{
+			long start = System.nanoTime();
 
-		Cursor cursor = db.query(tableName, new String[] { mapping.getIdMapping().getColumnName() }, mapping.getIdMapping().getColumnName() + " = ? ", new String[] { id + "" }, null, null, null);
+			db.execSQL(index.getValue());
 
-		return cursor.moveToFirst();
+			Logger.i(TAG, "Created index " + index.getKey() + " in " + ((System.nanoTime() - start) / 1000000L) + " ms");
+		}
 	}
 
 	private boolean syncClassAndTableSchema(EntityMapping<?> mapping) throws AnormousException
@@ -676,11 +2206,23 @@ public class AnormousSession
 		{
 			if (!mapping.isTableExists())
 			{
-				boolean tableExists = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table' AND name= ?;", new String[] { mapping.getMappedTableName() }).moveToFirst();
+				Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table' AND name= ?;", new String[] { mapping.getMappedTableName() });
+				boolean tableExists;
+
+				try
+				{
+					tableExists = cursor.moveToFirst();
+				}
+				finally
+				{
+					cursor.close();
+				}
 
 				if (!tableExists)
 				{
 					db.execSQL(mapper.generateCreateTableStatement(mapping.getEntityClass()));
+
+					createIndexes(mapping);
 				}
 
 				mapping.setTableExists(true);
@@ -707,6 +2249,14 @@ public class AnormousSession
 			return true;
 		}
 
+		// Still open only for an iterator, this caller closes it instead
+		if (closeDeferred)
+		{
+			closeDeferred = false;
+
+			return true;
+		}
+
 		if (!inTransaction)
 		{
 			if (mode == WRITE)
@@ -0,0 +1,53 @@
+package com.anormous.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class BatchResult
+{
+	private final List<Integer> batchSizes = new ArrayList<Integer>();
+	private final List<Long> batchTimes = new ArrayList<Long>();
+	private int count;
+	private long totalTimeNanos;
+
+	void addBatch(int size, long timeNanos)
+	{
+		batchSizes.add(size);
+		batchTimes.add(timeNanos / 1000000L);
+
+		count += size;
+		totalTimeNanos += timeNanos;
+	}
+
+	public int getCount()
+	{
+		return count;
+	}
+
+	public int getBatchCount()
+	{
+		return batchSizes.size();
+	}
+
+	public List<Integer> getBatchSizes()
+	{
+		return Collections.unmodifiableList(batchSizes);
+	}
+
+	public List<Long> getBatchTimesMillis()
+	{
+		return Collections.unmodifiableList(batchTimes);
+	}
+
+	public long getTotalTimeMillis()
+	{
+		return totalTimeNanos / 1000000L;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "BatchResult [count=" + count + ", batchCount=" + getBatchCount() + ", totalTimeMillis=" + getTotalTimeMillis() + ", batchTimesMillis=" + batchTimes + "]";
+	}
+}
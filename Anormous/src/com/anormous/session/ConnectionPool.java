@@ -0,0 +1,180 @@
+package com.anormous.session;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.anormous.error.AnormousException;
+import com.anormous.helper.AnormousGenericDBHelper;
+import com.anormous.logger.Logger;
+
+/**
+ * Pool of read only connections used alongside the single writer connection
+ * of {@link AnormousSession}. Readers only run concurrently with the writer
+ * when the database is in WAL journal mode, so the pool refuses to open
+ * otherwise.
+ */
+public class ConnectionPool
+{
+	private static final String TAG = "ConnectionPool";
+
+	private final AnormousGenericDBHelper dbHelper;
+	private final int size;
+	private final BlockingQueue<SQLiteDatabase> idleReaders;
+	private final PoolStatistics statistics;
+
+	private volatile boolean open = false;
+
+	public ConnectionPool(AnormousGenericDBHelper dbHelper, int size)
+	{
+		if (size < 1)
+			throw new IllegalArgumentException("Connection pool size must be at least 1, found : " + size);
+
+		this.dbHelper = dbHelper;
+		this.size = size;
+		this.idleReaders = new ArrayBlockingQueue<SQLiteDatabase>(size);
+		this.statistics = new PoolStatistics(size);
+	}
+
+	public synchronized boolean open(SQLiteDatabase writer) throws AnormousException
+	{
+		if (open)
+			return true;
+
+		try
+		{
+			if (!enableWriteAheadLogging(writer))
+			{
+				Logger.w(TAG, "WAL journal mode is not available, reads will keep using the writer connection");
+
+				return false;
+			}
+
+			for (int i = 0; i < size; i++)
+			{
+				SQLiteDatabase reader = dbHelper.openReadOnlyConnection();
+
+				idleReaders.add(reader);
+			}
+
+			statistics.recordIdle(idleReaders.size());
+			open = true;
+
+			Logger.i(TAG, "Opened " + size + " reader connections");
+
+			return true;
+		}
+		catch (Exception ex)
+		{
+			closeReaders();
+
+			throw new AnormousException("Connection pool open operation failed", ex);
+		}
+	}
+
+	public SQLiteDatabase acquireReader() throws AnormousException
+	{
+		if (!open)
+			throw new AnormousException("Connection pool is not open");
+
+		SQLiteDatabase reader = idleReaders.poll();
+		long waitNanos = 0;
+
+		if (reader == null)
+		{
+			long start = System.nanoTime();
+
+			try
+			{
+				reader = idleReaders.take();
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+
+				throw new AnormousException("Interrupted while waiting for a reader connection", ex);
+			}
+
+			waitNanos = System.nanoTime() - start;
+		}
+
+		statistics.recordAcquire(waitNanos);
+		statistics.recordIdle(idleReaders.size());
+
+		return reader;
+	}
+
+	public void releaseReader(SQLiteDatabase reader)
+	{
+		if (reader == null)
+			return;
+
+		if (open)
+		{
+			idleReaders.offer(reader);
+			statistics.recordIdle(idleReaders.size());
+		}
+		else
+		{
+			reader.close();
+		}
+	}
+
+	public synchronized void close()
+	{
+		open = false;
+
+		closeReaders();
+	}
+
+	public boolean isOpen()
+	{
+		return open;
+	}
+
+	public int getSize()
+	{
+		return size;
+	}
+
+	public PoolStatistics getStatistics()
+	{
+		return statistics;
+	}
+
+	private void closeReaders()
+	{
+		// Connections still checked out are closed when they are released
+		SQLiteDatabase reader;
+
+		while ((reader = idleReaders.poll()) != null)
+		{
+			try
+			{
+				reader.close();
+			}
+			catch (Exception ex)
+			{
+				Logger.w(TAG, "Error closing reader connection", ex);
+			}
+		}
+
+		statistics.recordIdle(0);
+	}
+
+	private boolean enableWriteAheadLogging(SQLiteDatabase writer)
+	{
+		Cursor cursor = writer.rawQuery("PRAGMA journal_mode=WAL", null);
+
+		try
+		{
+			return cursor.moveToFirst() && "wal".equalsIgnoreCase(cursor.getString(0));
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package com.anormous.session;
+
+/**
+ * Second level cache shared by everything using an {@link AnormousSession}.
+ * Entries hold the disassembled state of a bean, one value per mapped column
+ * in column order, so every lookup hands out its own instance. Only classes
+ * the cache reports as cacheable are ever passed to it.
+ */
+public interface EntityCache
+{
+	boolean isCacheable(Class<?> entityClass);
+
+	Object[] get(Class<?> entityClass, Object id);
+
+	/**
+	 * Version to pass to {@link #put}, taken before the row is read. Every
+	 * remove, evict and clear that may affect the class moves it on.
+	 */
+	long version(Class<?> entityClass);
+
+	/**
+	 * Stores the state unless the class was invalidated since the given
+	 * version was taken, so a row read before a write is never put back.
+	 */
+	void put(Class<?> entityClass, Object id, Object[] state, long versionSeen);
+
+	void remove(Class<?> entityClass, Object id);
+
+	void evict(Class<?> entityClass);
+
+	void clear();
+
+	long getHitCount();
+
+	long getMissCount();
+
+	long getEvictionCount();
+}
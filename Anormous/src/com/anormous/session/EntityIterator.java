@@ -0,0 +1,116 @@
+package com.anormous.session;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import android.database.Cursor;
+
+import com.anormous.error.AnormousException;
+import com.anormous.mapper.IEntityMapper;
+import com.anormous.mapper.QueryPlan;
+
+/**
+ * Lazily hydrates one bean per cursor row. The cursor and the connection it
+ * came from are released as soon as the last row is read, or when
+ * {@link #close()} is called, whichever happens first.
+ */
+public class EntityIterator<T> implements Iterator<T>, Closeable
+{
+	interface Releaser
+	{
+		void release();
+	}
+
+	private final Cursor cursor;
+	private final QueryPlan<T> plan;
+	private final IEntityMapper mapper;
+	private final Releaser releaser;
+
+	private T nextBean;
+	private boolean closed = false;
+
+	EntityIterator(Cursor cursor, QueryPlan<T> plan, IEntityMapper mapper, Releaser releaser)
+	{
+		this.cursor = cursor;
+		this.plan = plan;
+		this.mapper = mapper;
+		this.releaser = releaser;
+
+		if (cursor == null)
+			close();
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		if (nextBean != null)
+			return true;
+
+		if (closed)
+			return false;
+
+		try
+		{
+			while (cursor.moveToNext())
+			{
+				nextBean = mapper.valuesToBean(cursor, plan);
+
+				if (nextBean != null)
+					return true;
+			}
+		}
+		catch (AnormousException ex)
+		{
+			close();
+
+			throw new IllegalStateException("Error mapping db result to bean", ex);
+		}
+
+		close();
+
+		return false;
+	}
+
+	@Override
+	public T next()
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		T bean = nextBean;
+		nextBean = null;
+
+		return bean;
+	}
+
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException("Beans can not be removed through an iterator, use AnormousSession.delete instead");
+	}
+
+	@Override
+	public void close()
+	{
+		if (closed)
+			return;
+
+		closed = true;
+
+		try
+		{
+			if (cursor != null)
+				cursor.close();
+		}
+		finally
+		{
+			releaser.release();
+		}
+	}
+
+	public boolean isClosed()
+	{
+		return closed;
+	}
+}
@@ -0,0 +1,152 @@
+package com.anormous.session;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * First level cache of an {@link AnormousSession}: beans by entity class and
+ * id, so repeated lookups of the same id return the same instance without a
+ * query. Ids are compared by their string form, the same way
+ * {@link AnormousSession#select(Class, Object)} binds them. Only the thread
+ * running a transaction uses the map, and it is cleared when the transaction
+ * ends. Past its size limit the least recently used beans are dropped.
+ */
+public class IdentityMap
+{
+	public final static int DEFAULT_MAX_ENTRIES = 1000;
+
+	private final int maxEntries;
+	private final LinkedHashMap<EntityKey, Object> beans;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	public IdentityMap()
+	{
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	public IdentityMap(final int maxEntries)
+	{
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("Identity map size must be positive, found : " + maxEntries);
+
+		this.maxEntries = maxEntries;
+		this.beans = new LinkedHashMap<EntityKey, Object>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 6152213894529730573L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<EntityKey, Object> eldest)
+			{
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	synchronized Object get(Class<?> entityClass, Object id)
+	{
+		Object bean = beans.get(new EntityKey(entityClass, id));
+
+		if (bean != null)
+		{
+			hitCount.incrementAndGet();
+		}
+		else
+		{
+			missCount.incrementAndGet();
+		}
+
+		return bean;
+	}
+
+	/**
+	 * Keyed by the mapped entity class, not the bean's own, so beans of
+	 * subclasses are found by lookups of the class they were mapped as.
+	 */
+	synchronized void put(Class<?> entityClass, Object id, Object bean)
+	{
+		beans.put(new EntityKey(entityClass, id), bean);
+	}
+
+	synchronized void remove(Class<?> entityClass, Object id)
+	{
+		beans.remove(new EntityKey(entityClass, id));
+	}
+
+	/**
+	 * Drops every bean of the class, used when a write may have touched rows
+	 * that can not be told apart by id.
+	 */
+	synchronized void evict(Class<?> entityClass)
+	{
+		Iterator<EntityKey> keys = beans.keySet().iterator();
+
+		while (keys.hasNext())
+		{
+			if (keys.next().entityClass == entityClass)
+				keys.remove();
+		}
+	}
+
+	public synchronized void clear()
+	{
+		beans.clear();
+	}
+
+	public synchronized int size()
+	{
+		return beans.size();
+	}
+
+	public int getMaxEntries()
+	{
+		return maxEntries;
+	}
+
+	public long getHitCount()
+	{
+		return hitCount.get();
+	}
+
+	public long getMissCount()
+	{
+		return missCount.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "IdentityMap [size=" + size() + ", maxEntries=" + maxEntries + ", hitCount=" + getHitCount() + ", missCount=" + getMissCount() + "]";
+	}
+
+	private static class EntityKey
+	{
+		final Class<?> entityClass;
+		final String id;
+
+		EntityKey(Class<?> entityClass, Object id)
+		{
+			this.entityClass = entityClass;
+			this.id = String.valueOf(id);
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof EntityKey))
+				return false;
+
+			EntityKey other = (EntityKey) o;
+
+			return entityClass == other.entityClass && id.equals(other.id);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * entityClass.hashCode() + id.hashCode();
+		}
+	}
+}
@@ -0,0 +1,527 @@
+package com.anormous.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.anormous.mapper.EntityMapping;
+import com.anormous.mapper.SQLTokenizer;
+import com.anormous.mapper.SQLTokenizer.Token;
+import com.anormous.mapper.SQLTokenizer.TokenType;
+
+/**
+ * Collects the shapes of the where and order by clauses an
+ * {@link AnormousSession} runs, with literals folded into parameters, and
+ * how long they took. Query plans are sampled once per shape when advice is
+ * asked for, shapes that scan a whole table or sort through a temporary
+ * b-tree get an index proposed for their equality, range and ordering
+ * columns.
+ */
+public class IndexAdvisor
+{
+	public final static int DEFAULT_MAX_SHAPES = 256;
+
+	private final int maxShapes;
+	private final Map<String, QueryShape> shapes = new LinkedHashMap<String, QueryShape>();
+
+	public IndexAdvisor()
+	{
+		this(DEFAULT_MAX_SHAPES);
+	}
+
+	public IndexAdvisor(int maxShapes)
+	{
+		this.maxShapes = maxShapes;
+	}
+
+	void record(EntityMapping<?> mapping, String kind, String whereClause, String orderBy, String[] whereArgs, long nanos)
+	{
+		String table = mapping.getMappedTableName();
+		String key = kind + " " + table + " WHERE " + normalize(whereClause) + " ORDER BY " + normalize(orderBy);
+
+		synchronized (this)
+		{
+			QueryShape shape = shapes.get(key);
+
+			if (shape == null)
+			{
+				// Past the limit new shapes are dropped, the ones that
+				// repeat showed up early anyway
+				if (shapes.size() >= maxShapes)
+					return;
+
+				shape = new QueryShape(kind, table, whereClause, orderBy, whereArgs != null ? whereArgs.clone() : null, columnNames(mapping));
+				shapes.put(key, shape);
+			}
+
+			shape.count++;
+			shape.totalNanos += nanos;
+			shape.maxNanos = Math.max(shape.maxNanos, nanos);
+		}
+	}
+
+	synchronized List<QueryShape> unexplained()
+	{
+		List<QueryShape> result = new ArrayList<QueryShape>();
+
+		for (QueryShape shape : shapes.values())
+		{
+			if (shape.plan == null)
+				result.add(shape);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Reads both plan formats : SCAN / SEARCH lines of SQLite 3.7.16 and
+	 * later, and the TABLE lines of older versions such as the 3.6 of early
+	 * Android releases. Those never mention a sort, instead they say ORDER BY
+	 * when an index delivers the order, so an ordered shape without one is
+	 * taken to sort through a temporary b-tree.
+	 */
+	synchronized void explained(QueryShape shape, List<String> plan)
+	{
+		shape.plan = Collections.unmodifiableList(plan);
+
+		boolean oldFormat = false;
+		boolean orderedByIndex = false;
+
+		for (String detail : plan)
+		{
+			String upper = detail.toUpperCase(Locale.US);
+
+			if (upper.startsWith("SCAN") && !upper.contains(" USING "))
+				shape.fullScan = true;
+
+			if (upper.contains("TEMP B-TREE"))
+				shape.tempBTree = true;
+
+			if (upper.startsWith("TABLE "))
+			{
+				oldFormat = true;
+
+				if (!upper.contains(" WITH INDEX ") && !upper.contains(" USING PRIMARY KEY") && !upper.contains(" VIA "))
+					shape.fullScan = true;
+
+				if (upper.endsWith(" ORDER BY"))
+					orderedByIndex = true;
+			}
+		}
+
+		if (oldFormat && !orderedByIndex && shape.orderBy != null && shape.orderBy.length() > 0)
+			shape.tempBTree = true;
+
+		if (shape.fullScan || shape.tempBTree)
+			shape.proposedIndex = proposeIndex(shape);
+	}
+
+	/**
+	 * Recorded shapes, the most expensive first.
+	 */
+	public synchronized List<QueryShape> getShapes()
+	{
+		List<QueryShape> result = new ArrayList<QueryShape>(shapes.values());
+
+		Collections.sort(result, new Comparator<QueryShape>()
+		{
+			@Override
+			public int compare(QueryShape left, QueryShape right)
+			{
+				return left.totalNanos == right.totalNanos ? 0 : (left.totalNanos > right.totalNanos ? -1 : 1);
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * Proposed indexes of the explained shapes, ranked by the time spent in
+	 * all shapes that would use them.
+	 */
+	public synchronized List<Advice> getAdvice()
+	{
+		Map<String, Advice> advice = new HashMap<String, Advice>();
+
+		for (QueryShape shape : shapes.values())
+		{
+			if (shape.proposedIndex == null)
+				continue;
+
+			Advice entry = advice.get(shape.proposedIndex);
+
+			if (entry == null)
+			{
+				entry = new Advice(shape.proposedIndex);
+				advice.put(shape.proposedIndex, entry);
+			}
+
+			entry.count += shape.count;
+			entry.totalNanos += shape.totalNanos;
+			entry.shapes.add(shape);
+		}
+
+		List<Advice> result = new ArrayList<Advice>(advice.values());
+
+		Collections.sort(result, new Comparator<Advice>()
+		{
+			@Override
+			public int compare(Advice left, Advice right)
+			{
+				return left.totalNanos == right.totalNanos ? 0 : (left.totalNanos > right.totalNanos ? -1 : 1);
+			}
+		});
+
+		return result;
+	}
+
+	public synchronized void clear()
+	{
+		shapes.clear();
+	}
+
+	/**
+	 * Readable report of the flagged shapes and the proposed indexes.
+	 */
+	public String report()
+	{
+		StringBuilder report = new StringBuilder();
+
+		for (QueryShape shape : getShapes())
+		{
+			if (!shape.fullScan && !shape.tempBTree)
+				continue;
+
+			report.append(shape.fullScan ? "FULL SCAN " : "").append(shape.tempBTree ? "TEMP B-TREE " : "");
+			report.append(shape.count).append("x ").append(shape.totalNanos / 1000000L).append(" ms : ").append(shape.getSql()).append("\n");
+		}
+
+		for (Advice advice : getAdvice())
+		{
+			report.append(advice.totalNanos / 1000000L).append(" ms in ").append(advice.count).append(" statements : ").append(advice.statement).append("\n");
+		}
+
+		return report.toString();
+	}
+
+	private static String normalize(String clause)
+	{
+		if (clause == null)
+			return "";
+
+		StringBuilder normalized = new StringBuilder();
+
+		for (Token token : SQLTokenizer.tokenize(clause))
+		{
+			if (token.getType() == TokenType.WHITESPACE || token.getType() == TokenType.COMMENT)
+				normalized.append(' ');
+			else if (token.getType() == TokenType.STRING || token.getType() == TokenType.NUMBER || token.getType() == TokenType.PARAMETER)
+				normalized.append('?');
+			else
+				normalized.append(token.getText().toLowerCase(Locale.US));
+		}
+
+		return normalized.toString().trim();
+	}
+
+	private static Map<String, String> columnNames(EntityMapping<?> mapping)
+	{
+		Map<String, String> columns = new HashMap<String, String>();
+
+		for (int i = 0; i < mapping.getColumnCount(); i++)
+		{
+			String columnName = mapping.getColumn(i).getColumnName();
+
+			columns.put(columnName.toLowerCase(Locale.US), columnName);
+		}
+
+		return columns;
+	}
+
+	/**
+	 * Columns compared for equality first, then at most one range column,
+	 * then the ordering when the index can also deliver it. Nothing is
+	 * proposed for clauses with OR, an index rarely serves those.
+	 */
+	private static String proposeIndex(QueryShape shape)
+	{
+		List<Token> where = significantTokens(shape.whereClause);
+		Set<String> equality = new LinkedHashSet<String>();
+		String range = null;
+
+		for (int i = 0; i < where.size(); i++)
+		{
+			Token token = where.get(i);
+
+			if (token.getType() == TokenType.IDENTIFIER && token.getText().equalsIgnoreCase("OR"))
+				return null;
+
+			String column = column(shape, token);
+
+			if (column == null)
+				continue;
+
+			String after = i + 1 < where.size() ? where.get(i + 1).getText().toUpperCase(Locale.US) : "";
+			String afterNext = i + 2 < where.size() ? where.get(i + 2).getText() : "";
+			String before = i > 0 ? where.get(i - 1).getText() : "";
+			String beforePrevious = i > 1 ? where.get(i - 2).getText() : "";
+
+			// Operators of two characters come as two symbols, ? <= column
+			if (before.equals("=") && (beforePrevious.equals("<") || beforePrevious.equals(">") || beforePrevious.equals("!")))
+				before = beforePrevious + before;
+
+			if (after.equals("=") || after.equals("IN") || (after.equals("IS") && !afterNext.equalsIgnoreCase("NOT")))
+			{
+				equality.add(column);
+			}
+			else if (after.equals("<") || after.equals(">") || after.equals("BETWEEN"))
+			{
+				if (range == null && !afterNext.equals(">"))
+					range = column;
+			}
+			else if (before.equals("="))
+			{
+				equality.add(column);
+			}
+			else if ((before.startsWith("<") || before.startsWith(">")) && range == null)
+			{
+				range = column;
+			}
+		}
+
+		List<String> columns = new ArrayList<String>(equality);
+		List<Token> orderBy = significantTokens(shape.orderBy);
+		List<String> ordering = new ArrayList<String>();
+
+		for (int i = 0; i < orderBy.size(); i++)
+		{
+			String column = column(shape, orderBy.get(i));
+
+			if (column == null)
+				continue;
+
+			boolean descending = i + 1 < orderBy.size() && orderBy.get(i + 1).getText().equalsIgnoreCase("DESC");
+
+			ordering.add(descending ? column + " DESC" : column);
+		}
+
+		// Past a range column the rows are only sorted by that column
+		if (range == null || (!ordering.isEmpty() && ordering.get(0).split(" ")[0].equals(range)))
+		{
+			for (String order : ordering)
+			{
+				String column = order.split(" ")[0];
+
+				if (!equality.contains(column) && !columns.contains(column) && !columns.contains(column + " DESC"))
+					columns.add(order);
+			}
+		}
+		else if (!equality.contains(range))
+		{
+			columns.add(range);
+		}
+
+		if (columns.isEmpty())
+			return null;
+
+		StringBuilder name = new StringBuilder("idx_" + shape.table);
+		StringBuilder definition = new StringBuilder();
+
+		for (String column : columns)
+		{
+			name.append("_").append(column.split(" ")[0]);
+
+			if (definition.length() > 0)
+				definition.append(", ");
+
+			definition.append(column);
+		}
+
+		return "CREATE INDEX " + name + " ON " + shape.table + " (" + definition + ");";
+	}
+
+	private static List<Token> significantTokens(String clause)
+	{
+		List<Token> tokens = new ArrayList<Token>();
+
+		if (clause == null)
+			return tokens;
+
+		for (Token token : SQLTokenizer.tokenize(clause))
+		{
+			if (token.getType() != TokenType.WHITESPACE && token.getType() != TokenType.COMMENT)
+				tokens.add(token);
+		}
+
+		return tokens;
+	}
+
+	private static String column(QueryShape shape, Token token)
+	{
+		if (token.getType() != TokenType.IDENTIFIER && token.getType() != TokenType.QUOTED_IDENTIFIER)
+			return null;
+
+		String text = token.getText();
+
+		if (token.getType() == TokenType.QUOTED_IDENTIFIER && text.length() > 1)
+			text = text.substring(1, text.length() - 1);
+
+		return shape.columns.get(text.toLowerCase(Locale.US));
+	}
+
+	public static class QueryShape
+	{
+		private final String kind;
+		private final String table;
+		private final String whereClause;
+		private final String orderBy;
+		private final String[] whereArgs;
+		private final Map<String, String> columns;
+
+		private int count;
+		private long totalNanos;
+		private long maxNanos;
+
+		private List<String> plan;
+		private boolean fullScan;
+		private boolean tempBTree;
+		private String proposedIndex;
+
+		QueryShape(String kind, String table, String whereClause, String orderBy, String[] whereArgs, Map<String, String> columns)
+		{
+			this.kind = kind;
+			this.table = table;
+			this.whereClause = whereClause;
+			this.orderBy = orderBy;
+			this.whereArgs = whereArgs;
+			this.columns = columns;
+		}
+
+		/**
+		 * Query with the same access path as the recorded statement, updates
+		 * and deletes are explained as the select of their rows.
+		 */
+		String getExplainSql()
+		{
+			StringBuilder sql = new StringBuilder("SELECT * FROM " + table);
+
+			if (whereClause != null && whereClause.length() > 0)
+				sql.append(" WHERE ").append(whereClause);
+
+			if (orderBy != null && orderBy.length() > 0)
+				sql.append(" ORDER BY ").append(orderBy);
+
+			return sql.toString();
+		}
+
+		String[] getWhereArgs()
+		{
+			return whereArgs;
+		}
+
+		public String getKind()
+		{
+			return kind;
+		}
+
+		public String getTable()
+		{
+			return table;
+		}
+
+		public String getSql()
+		{
+			return kind + " " + table + (whereClause != null && whereClause.length() > 0 ? " WHERE " + normalize(whereClause) : "") + (orderBy != null && orderBy.length() > 0 ? " ORDER BY " + normalize(orderBy) : "");
+		}
+
+		public int getCount()
+		{
+			return count;
+		}
+
+		public long getTotalNanos()
+		{
+			return totalNanos;
+		}
+
+		public long getMaxNanos()
+		{
+			return maxNanos;
+		}
+
+		/**
+		 * Details of the sampled query plan, null until advice was asked for.
+		 */
+		public List<String> getPlan()
+		{
+			return plan;
+		}
+
+		public boolean isFullScan()
+		{
+			return fullScan;
+		}
+
+		public boolean isTempBTree()
+		{
+			return tempBTree;
+		}
+
+		public String getProposedIndex()
+		{
+			return proposedIndex;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "QueryShape [sql=" + getSql() + ", count=" + getCount() + ", totalNanos=" + getTotalNanos() + ", fullScan=" + fullScan + ", tempBTree=" + tempBTree + "]";
+		}
+	}
+
+	public static class Advice
+	{
+		private final String statement;
+		private int count;
+		private long totalNanos;
+		private final List<QueryShape> shapes = new ArrayList<QueryShape>();
+
+		Advice(String statement)
+		{
+			this.statement = statement;
+		}
+
+		public String getStatement()
+		{
+			return statement;
+		}
+
+		public int getCount()
+		{
+			return count;
+		}
+
+		public long getTotalNanos()
+		{
+			return totalNanos;
+		}
+
+		public List<QueryShape> getShapes()
+		{
+			return shapes;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Advice [statement=" + statement + ", count=" + count + ", totalNanos=" + totalNanos + "]";
+		}
+	}
+}
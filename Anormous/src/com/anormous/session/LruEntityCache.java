@@ -0,0 +1,248 @@
+package com.anormous.session;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.anormous.annotation.Cacheable;
+
+/**
+ * Default {@link EntityCache}: one LRU region per entity class annotated with
+ * {@link Cacheable}, sized and expired as the annotation says.
+ */
+public class LruEntityCache implements EntityCache
+{
+	private final ConcurrentMap<Class<?>, Region> regions = new ConcurrentHashMap<Class<?>, Region>();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	// Same scheme as the query result cache, every invalidation takes the
+	// next version
+	private final AtomicLong modCount = new AtomicLong();
+	private volatile long clearedAt = 0;
+
+	// Stands in for classes that are not cacheable, so the annotation is
+	// only looked up once per class
+	private final Region noRegion = new Region(0, 0);
+
+	private Region region(Class<?> entityClass)
+	{
+		Region region = regions.get(entityClass);
+
+		if (region == null)
+		{
+			Cacheable cacheable = entityClass.getAnnotation(Cacheable.class);
+
+			region = cacheable != null ? new Region(cacheable.maxEntries(), cacheable.ttlMillis()) : noRegion;
+
+			Region existing = regions.putIfAbsent(entityClass, region);
+
+			if (existing != null)
+				region = existing;
+		}
+
+		return region != noRegion ? region : null;
+	}
+
+	@Override
+	public boolean isCacheable(Class<?> entityClass)
+	{
+		return region(entityClass) != null;
+	}
+
+	@Override
+	public Object[] get(Class<?> entityClass, Object id)
+	{
+		Region region = region(entityClass);
+		Object[] state = region != null ? region.get(String.valueOf(id)) : null;
+
+		if (state != null)
+		{
+			hitCount.incrementAndGet();
+		}
+		else
+		{
+			missCount.incrementAndGet();
+		}
+
+		return state;
+	}
+
+	@Override
+	public long version(Class<?> entityClass)
+	{
+		Region region = region(entityClass);
+
+		return region != null ? region.version() : clearedAt;
+	}
+
+	@Override
+	public void put(Class<?> entityClass, Object id, Object[] state, long versionSeen)
+	{
+		Region region = region(entityClass);
+
+		if (region != null)
+			region.put(String.valueOf(id), state, versionSeen);
+	}
+
+	@Override
+	public void remove(Class<?> entityClass, Object id)
+	{
+		Region region = regions.get(entityClass);
+
+		if (region != null && region != noRegion)
+			region.remove(String.valueOf(id));
+	}
+
+	@Override
+	public void evict(Class<?> entityClass)
+	{
+		Region region = regions.get(entityClass);
+
+		if (region != null && region != noRegion)
+			region.clear();
+	}
+
+	@Override
+	public void clear()
+	{
+		// Before the regions are emptied, so no put racing with this one
+		// gets through with an older version
+		clearedAt = modCount.incrementAndGet();
+
+		for (Region region : regions.values())
+		{
+			if (region != noRegion)
+				region.clear();
+		}
+	}
+
+	public int size()
+	{
+		int size = 0;
+
+		for (Region region : regions.values())
+		{
+			if (region != noRegion)
+				size += region.size();
+		}
+
+		return size;
+	}
+
+	@Override
+	public long getHitCount()
+	{
+		return hitCount.get();
+	}
+
+	@Override
+	public long getMissCount()
+	{
+		return missCount.get();
+	}
+
+	@Override
+	public long getEvictionCount()
+	{
+		return evictionCount.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "LruEntityCache [size=" + size() + ", hitCount=" + getHitCount() + ", missCount=" + getMissCount() + ", evictionCount=" + getEvictionCount() + "]";
+	}
+
+	private class Region
+	{
+		private final long ttlMillis;
+		private final LinkedHashMap<String, CachedState> entries;
+		private long version = 0;
+
+		Region(final int maxEntries, long ttlMillis)
+		{
+			this.ttlMillis = ttlMillis;
+			this.entries = new LinkedHashMap<String, CachedState>(16, 0.75f, true)
+			{
+				private static final long serialVersionUID = -3188256417452284309L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CachedState> eldest)
+				{
+					if (size() > maxEntries)
+					{
+						evictionCount.incrementAndGet();
+
+						return true;
+					}
+
+					return false;
+				}
+			};
+		}
+
+		synchronized Object[] get(String id)
+		{
+			CachedState entry = entries.get(id);
+
+			if (entry == null)
+				return null;
+
+			if (entry.expiresAt != 0 && entry.expiresAt < System.currentTimeMillis())
+			{
+				entries.remove(id);
+				evictionCount.incrementAndGet();
+
+				return null;
+			}
+
+			return entry.state;
+		}
+
+		synchronized long version()
+		{
+			return Math.max(clearedAt, version);
+		}
+
+		synchronized void put(String id, Object[] state, long versionSeen)
+		{
+			if (version() != versionSeen)
+				return;
+
+			entries.put(id, new CachedState(state, ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0));
+		}
+
+		synchronized void remove(String id)
+		{
+			version = modCount.incrementAndGet();
+			entries.remove(id);
+		}
+
+		synchronized void clear()
+		{
+			version = modCount.incrementAndGet();
+			entries.clear();
+		}
+
+		synchronized int size()
+		{
+			return entries.size();
+		}
+	}
+
+	private static class CachedState
+	{
+		final Object[] state;
+		final long expiresAt;
+
+		CachedState(Object[] state, long expiresAt)
+		{
+			this.state = state;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
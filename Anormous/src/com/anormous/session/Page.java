@@ -0,0 +1,143 @@
+package com.anormous.session;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.anormous.error.AnormousException;
+
+public class Page<T>
+{
+	private final List<T> items;
+	private final String continuationToken;
+
+	Page(List<T> items, String continuationToken)
+	{
+		this.items = Collections.unmodifiableList(items);
+		this.continuationToken = continuationToken;
+	}
+
+	public List<T> getItems()
+	{
+		return items;
+	}
+
+	public int size()
+	{
+		return items.size();
+	}
+
+	public boolean hasMore()
+	{
+		return continuationToken != null;
+	}
+
+	/**
+	 * Opaque token to pass back to {@link AnormousSession#selectPage} for the
+	 * next page, or null when this is the last page.
+	 */
+	public String getContinuationToken()
+	{
+		return continuationToken;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Page [size=" + items.size() + ", hasMore=" + hasMore() + "]";
+	}
+
+	// Tokens are a hex encoded list of length prefixed fields, a null field
+	// is written as a lone '-'
+	static String encodeToken(String... fields) throws AnormousException
+	{
+		StringBuilder plain = new StringBuilder();
+
+		for (String field : fields)
+		{
+			if (field == null)
+			{
+				plain.append('-');
+			}
+			else
+			{
+				plain.append(field.length()).append(':').append(field);
+			}
+		}
+
+		try
+		{
+			byte[] bytes = plain.toString().getBytes("UTF-8");
+			StringBuilder token = new StringBuilder(bytes.length * 2);
+
+			for (byte b : bytes)
+			{
+				token.append(Character.forDigit((b >> 4) & 0xF, 16));
+				token.append(Character.forDigit(b & 0xF, 16));
+			}
+
+			return token.toString();
+		}
+		catch (UnsupportedEncodingException ex)
+		{
+			throw new AnormousException("Error encoding continuation token", ex);
+		}
+	}
+
+	static String[] decodeToken(String token, int fieldCount) throws AnormousException
+	{
+		try
+		{
+			if (token.length() % 2 != 0)
+				throw new IllegalArgumentException("Odd token length");
+
+			byte[] bytes = new byte[token.length() / 2];
+
+			for (int i = 0; i < bytes.length; i++)
+			{
+				int high = Character.digit(token.charAt(i * 2), 16);
+				int low = Character.digit(token.charAt(i * 2 + 1), 16);
+
+				if (high < 0 || low < 0)
+					throw new IllegalArgumentException("Invalid token character");
+
+				bytes[i] = (byte) ((high << 4) | low);
+			}
+
+			String plain = new String(bytes, "UTF-8");
+			List<String> fields = new ArrayList<String>(fieldCount);
+			int position = 0;
+
+			while (position < plain.length())
+			{
+				if (plain.charAt(position) == '-')
+				{
+					fields.add(null);
+					position++;
+				}
+				else
+				{
+					int separator = plain.indexOf(':', position);
+					int length = Integer.parseInt(plain.substring(position, separator));
+
+					fields.add(plain.substring(separator + 1, separator + 1 + length));
+					position = separator + 1 + length;
+				}
+			}
+
+			if (fields.size() != fieldCount)
+				throw new IllegalArgumentException("Expected " + fieldCount + " fields, found " + fields.size());
+
+			return fields.toArray(new String[fieldCount]);
+		}
+		catch (UnsupportedEncodingException ex)
+		{
+			throw new AnormousException("Error decoding continuation token", ex);
+		}
+		catch (RuntimeException ex)
+		{
+			throw new AnormousException("Invalid continuation token : " + token, ex);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.anormous.session;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PoolStatistics
+{
+	private final int poolSize;
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private final AtomicLong acquireCount = new AtomicLong();
+	private final AtomicLong waitCount = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	PoolStatistics(int poolSize)
+	{
+		this.poolSize = poolSize;
+	}
+
+	void recordIdle(int idle)
+	{
+		idleCount.set(idle);
+	}
+
+	void recordAcquire(long waitNanos)
+	{
+		acquireCount.incrementAndGet();
+
+		if (waitNanos > 0)
+		{
+			waitCount.incrementAndGet();
+			totalWaitNanos.addAndGet(waitNanos);
+
+			long currentMax;
+
+			do
+			{
+				currentMax = maxWaitNanos.get();
+			}
+			while (waitNanos > currentMax && !maxWaitNanos.compareAndSet(currentMax, waitNanos));
+		}
+	}
+
+	public int getPoolSize()
+	{
+		return poolSize;
+	}
+
+	public int getIdleCount()
+	{
+		return idleCount.get();
+	}
+
+	public int getActiveCount()
+	{
+		return poolSize - idleCount.get();
+	}
+
+	public long getAcquireCount()
+	{
+		return acquireCount.get();
+	}
+
+	public long getWaitCount()
+	{
+		return waitCount.get();
+	}
+
+	public long getTotalWaitTimeMillis()
+	{
+		return totalWaitNanos.get() / 1000000L;
+	}
+
+	public long getMaxWaitTimeMillis()
+	{
+		return maxWaitNanos.get() / 1000000L;
+	}
+
+	public double getAverageWaitTimeMillis()
+	{
+		long waits = waitCount.get();
+
+		return waits == 0 ? 0 : (totalWaitNanos.get() / 1000000.0) / waits;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "PoolStatistics [poolSize=" + poolSize + ", idleCount=" + getIdleCount() + ", acquireCount=" + getAcquireCount() + ", waitCount=" + getWaitCount() + ", totalWaitTimeMillis=" + getTotalWaitTimeMillis() + ", maxWaitTimeMillis=" + getMaxWaitTimeMillis() + "]";
+	}
+}
@@ -0,0 +1,482 @@
+package com.anormous.session;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.anormous.mapper.QueryPlan;
+import com.anormous.mapper.SQLTokenizer;
+import com.anormous.mapper.SQLTokenizer.Token;
+import com.anormous.mapper.SQLTokenizer.TokenType;
+
+/**
+ * Results of entity selects keyed by the translated query and its arguments,
+ * kept within a memory budget and dropped whenever one of the tables they
+ * were read from, subqueries included, is written through the session. Rows
+ * are kept as disassembled column values, so every hit hands out fresh
+ * beans.
+ */
+public class QueryResultCache
+{
+	public final static long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+	private final long maxBytes;
+	private long usedBytes = 0;
+
+	private final LinkedHashMap<String, CachedResult> results = new LinkedHashMap<String, CachedResult>(16, 0.75f, true);
+	private final Map<String, Set<String>> keysByTable = new HashMap<String, Set<String>>();
+
+	// Every invalidation takes the next version, a result is only stored if
+	// its table was not invalidated while it was being read
+	private long modCount = 0;
+	private long clearedAt = 0;
+	private final Map<String, Long> tableVersions = new HashMap<String, Long>();
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	private final AtomicLong invalidationCount = new AtomicLong();
+
+	public QueryResultCache()
+	{
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	public QueryResultCache(long maxBytes)
+	{
+		if (maxBytes < 1)
+			throw new IllegalArgumentException("Query result cache budget must be positive, found : " + maxBytes);
+
+		this.maxBytes = maxBytes;
+	}
+
+	static String key(QueryPlan<?> plan, String[] whereArgs, String limit)
+	{
+		StringBuilder key = new StringBuilder(128);
+
+		key.append(plan.isDistinct() ? "SELECT DISTINCT " : "SELECT ").append(plan.getEntityClass().getName());
+		key.append(" FROM ").append(plan.getTableName());
+		key.append(" WHERE ").append(plan.getWhereClause());
+		key.append(" GROUP BY ").append(plan.getGroupBy());
+		key.append(" HAVING ").append(plan.getHaving());
+		key.append(" ORDER BY ").append(plan.getOrderBy());
+		key.append(" LIMIT ").append(limit);
+
+		if (whereArgs != null)
+		{
+			for (String arg : whereArgs)
+			{
+				// Length prefixed, so no argument can be mistaken for two
+				if (arg == null)
+					key.append(" -");
+				else
+					key.append(' ').append(arg.length()).append(':').append(arg);
+			}
+		}
+
+		return key.toString();
+	}
+
+	synchronized List<Object[]> get(String key)
+	{
+		CachedResult result = results.get(key);
+
+		if (result != null)
+		{
+			hitCount.incrementAndGet();
+
+			return result.rows;
+		}
+
+		missCount.incrementAndGet();
+
+		return null;
+	}
+
+	/**
+	 * Version to pass to {@link #put}, taken before the query runs.
+	 */
+	synchronized long version(Set<String> tables)
+	{
+		long version = clearedAt;
+
+		for (String table : tables)
+		{
+			Long tableVersion = tableVersions.get(table);
+
+			if (tableVersion != null && tableVersion > version)
+				version = tableVersion;
+		}
+
+		return version;
+	}
+
+	/**
+	 * Stores the rows under every table in the given set, as returned by
+	 * {@link #readTables}.
+	 */
+	synchronized void put(String key, Set<String> tables, List<Object[]> rows, long versionSeen)
+	{
+		if (version(tables) != versionSeen)
+			return;
+
+		long size = estimateSize(key, rows);
+
+		// Never let a single result flush the whole cache
+		if (size > maxBytes / 2)
+			return;
+
+		remove(key);
+
+		results.put(key, new CachedResult(tables, rows, size));
+		usedBytes += size;
+
+		for (String table : tables)
+		{
+			Set<String> keys = keysByTable.get(table);
+
+			if (keys == null)
+			{
+				keys = new HashSet<String>();
+				keysByTable.put(table, keys);
+			}
+
+			keys.add(key);
+		}
+
+		Iterator<Map.Entry<String, CachedResult>> eldest = results.entrySet().iterator();
+
+		while (usedBytes > maxBytes && eldest.hasNext())
+		{
+			Map.Entry<String, CachedResult> entry = eldest.next();
+
+			eldest.remove();
+			forget(entry.getKey(), entry.getValue());
+			evictionCount.incrementAndGet();
+		}
+	}
+
+	synchronized void invalidateTable(String table)
+	{
+		String normalized = normalize(table);
+
+		tableVersions.put(normalized, ++modCount);
+
+		Set<String> keys = keysByTable.remove(normalized);
+
+		if (keys != null)
+		{
+			for (String key : keys)
+			{
+				CachedResult result = results.remove(key);
+
+				if (result != null)
+				{
+					// Also drops the key from the other tables it was read from
+					forget(key, result);
+					invalidationCount.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	public synchronized void clear()
+	{
+		clearedAt = ++modCount;
+		tableVersions.clear();
+
+		invalidationCount.addAndGet(results.size());
+
+		results.clear();
+		keysByTable.clear();
+		usedBytes = 0;
+	}
+
+	private void remove(String key)
+	{
+		CachedResult result = results.remove(key);
+
+		if (result != null)
+			forget(key, result);
+	}
+
+	private void forget(String key, CachedResult result)
+	{
+		usedBytes -= result.size;
+
+		for (String table : result.tables)
+		{
+			Set<String> keys = keysByTable.get(table);
+
+			if (keys != null)
+			{
+				keys.remove(key);
+
+				if (keys.isEmpty())
+					keysByTable.remove(table);
+			}
+		}
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public synchronized long getUsedBytes()
+	{
+		return usedBytes;
+	}
+
+	public synchronized int size()
+	{
+		return results.size();
+	}
+
+	public long getHitCount()
+	{
+		return hitCount.get();
+	}
+
+	public long getMissCount()
+	{
+		return missCount.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictionCount.get();
+	}
+
+	public long getInvalidationCount()
+	{
+		return invalidationCount.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "QueryResultCache [size=" + size() + ", usedBytes=" + getUsedBytes() + ", maxBytes=" + maxBytes + ", hitCount=" + getHitCount() + ", missCount=" + getMissCount() + ", evictionCount=" + getEvictionCount() + ", invalidationCount=" + getInvalidationCount() + "]";
+	}
+
+	/**
+	 * Normalized names of the tables a plan reads : its own table and every
+	 * table named after FROM or JOIN in the clauses, which only appear there
+	 * in subqueries.
+	 */
+	static Set<String> readTables(QueryPlan<?> plan)
+	{
+		Set<String> tables = new HashSet<String>();
+
+		tables.add(normalize(plan.getTableName()));
+
+		for (String clause : new String[] { plan.getWhereClause(), plan.getGroupBy(), plan.getHaving(), plan.getOrderBy() })
+		{
+			if (clause != null)
+				collectReadTables(clause, tables);
+		}
+
+		return tables;
+	}
+
+	private static void collectReadTables(String sql, Set<String> tables)
+	{
+		List<String> words = new ArrayList<String>();
+
+		for (Token token : SQLTokenizer.tokenize(sql))
+		{
+			if (token.getType() == TokenType.WHITESPACE || token.getType() == TokenType.COMMENT)
+				continue;
+
+			// Strings are kept as they are, so a quoted 'from' is no keyword
+			words.add(token.getType() == TokenType.QUOTED_IDENTIFIER ? unquote(token.getText()) : token.getText());
+		}
+
+		for (int i = 0; i < words.size(); i++)
+		{
+			if (!words.get(i).equalsIgnoreCase("FROM") && !words.get(i).equalsIgnoreCase("JOIN"))
+				continue;
+
+			int position = i + 1;
+
+			// FROM a, b AS c, d e
+			while (position < words.size() && !words.get(position).equals("("))
+			{
+				String table = words.get(position);
+
+				if (position + 2 < words.size() && words.get(position + 1).equals("."))
+				{
+					table = words.get(position + 2);
+					position += 2;
+				}
+
+				tables.add(normalize(table));
+				position++;
+
+				if (position < words.size() && words.get(position).equalsIgnoreCase("AS"))
+					position += 2;
+				else if (position + 1 < words.size() && words.get(position + 1).equals(","))
+					position++;
+
+				if (position >= words.size() || !words.get(position).equals(","))
+					break;
+
+				position++;
+			}
+		}
+	}
+
+	/**
+	 * Tables written by the given SQL, or null when the statement is not
+	 * understood and anything may have changed. Writes made by triggers are
+	 * not visible here.
+	 */
+	static Set<String> writtenTables(String sql)
+	{
+		List<String> words = new ArrayList<String>();
+		Set<String> tables = new HashSet<String>();
+
+		for (Token token : SQLTokenizer.tokenize(sql))
+		{
+			if (token.getType() == TokenType.WHITESPACE || token.getType() == TokenType.COMMENT)
+				continue;
+
+			if (token.getType() == TokenType.SYMBOL && token.getText().equals(";"))
+			{
+				if (!collectWrittenTable(words, tables))
+					return null;
+
+				words.clear();
+			}
+			else
+			{
+				words.add(token.getType() == TokenType.QUOTED_IDENTIFIER ? unquote(token.getText()) : token.getText());
+			}
+		}
+
+		if (!collectWrittenTable(words, tables))
+			return null;
+
+		return tables;
+	}
+
+	private static boolean collectWrittenTable(List<String> words, Set<String> tables)
+	{
+		if (words.isEmpty())
+			return true;
+
+		String command = words.get(0).toUpperCase(Locale.US);
+		int position;
+
+		if (command.equals("INSERT") || command.equals("REPLACE"))
+		{
+			position = indexOfWord(words, "INTO") + 1;
+		}
+		else if (command.equals("UPDATE"))
+		{
+			position = words.size() > 2 && words.get(1).equalsIgnoreCase("OR") ? 3 : 1;
+		}
+		else if (command.equals("DELETE"))
+		{
+			position = indexOfWord(words, "FROM") + 1;
+		}
+		else if ((command.equals("DROP") || command.equals("ALTER")) && words.size() > 1 && words.get(1).equalsIgnoreCase("TABLE"))
+		{
+			position = words.size() > 3 && words.get(2).equalsIgnoreCase("IF") ? 4 : 2;
+		}
+		else
+		{
+			// Statements that never change rows of existing tables
+			return command.equals("SELECT") || command.equals("CREATE") || command.equals("DROP") || command.equals("BEGIN") || command.equals("COMMIT") || command.equals("END") || command.equals("ANALYZE") || command.equals("EXPLAIN");
+		}
+
+		if (position <= 0 || position >= words.size())
+			return false;
+
+		String table = words.get(position);
+
+		// Schema qualified, main.table
+		if (position + 2 < words.size() && words.get(position + 1).equals("."))
+			table = words.get(position + 2);
+
+		tables.add(normalize(table));
+
+		return true;
+	}
+
+	private static int indexOfWord(List<String> words, String word)
+	{
+		for (int i = 0; i < words.size(); i++)
+		{
+			if (words.get(i).equalsIgnoreCase(word))
+				return i;
+		}
+
+		return -1;
+	}
+
+	private static String unquote(String identifier)
+	{
+		if (identifier.length() < 2)
+			return identifier;
+
+		char quote = identifier.charAt(0);
+		String content = identifier.substring(1, identifier.length() - 1);
+
+		if (quote == '[')
+			return content;
+
+		return content.replace(String.valueOf(quote) + quote, String.valueOf(quote));
+	}
+
+	private static String normalize(String table)
+	{
+		return table.toLowerCase(Locale.US);
+	}
+
+	private static long estimateSize(String key, List<Object[]> rows)
+	{
+		long size = 64 + key.length() * 2L;
+
+		for (Object[] row : rows)
+		{
+			size += 16 + row.length * 4L;
+
+			for (Object value : row)
+			{
+				if (value instanceof String)
+					size += 40 + ((String) value).length() * 2L;
+				else if (value instanceof byte[])
+					size += 16 + ((byte[]) value).length;
+				else if (value instanceof Date)
+					size += 24;
+				else if (value != null)
+					size += 16;
+			}
+		}
+
+		return size;
+	}
+
+	private static class CachedResult
+	{
+		final Set<String> tables;
+		final List<Object[]> rows;
+		final long size;
+
+		CachedResult(Set<String> tables, List<Object[]> rows, long size)
+		{
+			this.tables = tables;
+			this.rows = rows;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package com.anormous.session;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * LRU cache of statements compiled on the session's writer connection.
+ * Statements are only valid for the connection that compiled them, so the
+ * session clears the cache whenever that connection is closed.
+ */
+public class StatementCache
+{
+	public final static int DEFAULT_CAPACITY = 32;
+
+	// A single write may hold up to three statements at once (update,
+	// changes() and insert) so smaller caches could close one in use
+	private final static int MINIMUM_CAPACITY = 4;
+
+	public static enum Operation
+	{
+		INSERT, UPSERT, UPDATE, DELETE, RAW
+	}
+
+	private final int capacity;
+	private final LinkedHashMap<Key, SQLiteStatement> statements;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	public StatementCache()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	public StatementCache(int capacity)
+	{
+		if (capacity < MINIMUM_CAPACITY)
+			throw new IllegalArgumentException("Statement cache capacity must be at least " + MINIMUM_CAPACITY + ", found : " + capacity);
+
+		this.capacity = capacity;
+		this.statements = new LinkedHashMap<Key, SQLiteStatement>(capacity, 0.75f, true)
+		{
+			private static final long serialVersionUID = 4712281547219618322L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, SQLiteStatement> eldest)
+			{
+				if (size() > StatementCache.this.capacity)
+				{
+					eldest.getValue().close();
+					evictionCount.incrementAndGet();
+
+					return true;
+				}
+
+				return false;
+			}
+		};
+	}
+
+	SQLiteStatement get(Class<?> entityClass, Operation operation, String shape)
+	{
+		SQLiteStatement statement = statements.get(new Key(entityClass, operation, shape));
+
+		if (statement != null)
+		{
+			hitCount.incrementAndGet();
+		}
+		else
+		{
+			missCount.incrementAndGet();
+		}
+
+		return statement;
+	}
+
+	void put(Class<?> entityClass, Operation operation, String shape, SQLiteStatement statement)
+	{
+		SQLiteStatement previous = statements.put(new Key(entityClass, operation, shape), statement);
+
+		if (previous != null && previous != statement)
+			previous.close();
+	}
+
+	void clear()
+	{
+		for (SQLiteStatement statement : statements.values())
+		{
+			statement.close();
+		}
+
+		statements.clear();
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	public int size()
+	{
+		return statements.size();
+	}
+
+	public long getHitCount()
+	{
+		return hitCount.get();
+	}
+
+	public long getMissCount()
+	{
+		return missCount.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictionCount.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "StatementCache [capacity=" + capacity + ", size=" + size() + ", hitCount=" + getHitCount() + ", missCount=" + getMissCount() + ", evictionCount=" + getEvictionCount() + "]";
+	}
+
+	private static class Key
+	{
+		private final Class<?> entityClass;
+		private final Operation operation;
+		private final String shape;
+
+		Key(Class<?> entityClass, Operation operation, String shape)
+		{
+			this.entityClass = entityClass;
+			this.operation = operation;
+			this.shape = shape != null ? shape : "";
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+
+			Key other = (Key) o;
+
+			return entityClass == other.entityClass && operation == other.operation && shape.equals(other.shape);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = entityClass != null ? entityClass.hashCode() : 0;
+			result = 31 * result + operation.hashCode();
+			result = 31 * result + shape.hashCode();
+
+			return result;
+		}
+	}
+}
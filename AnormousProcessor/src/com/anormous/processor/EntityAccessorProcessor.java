@@ -0,0 +1,364 @@
+package com.anormous.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a <code>com.anormous.mapper.EntityAccessor</code> for every class
+ * annotated with <code>@Table</code>, or with <code>@Column</code> /
+ * <code>@IdentityColumn</code> members. Properties are discovered with the
+ * same rules <code>DefaultEntityMapper</code> applies at runtime (public
+ * getters with their matching setters, then public fields, skipping
+ * <code>@Ignore</code>), so the generated accessor covers exactly the
+ * properties the runtime mapping contains.
+ */
+@SupportedAnnotationTypes({ EntityAccessorProcessor.TABLE, EntityAccessorProcessor.COLUMN, EntityAccessorProcessor.IDENTITY_COLUMN })
+public class EntityAccessorProcessor extends AbstractProcessor
+{
+	static final String TABLE = "com.anormous.annotation.Table";
+	static final String COLUMN = "com.anormous.annotation.Column";
+	static final String IDENTITY_COLUMN = "com.anormous.annotation.IdentityColumn";
+	static final String IGNORE = "com.anormous.annotation.Ignore";
+
+	private static final String ACCESSOR_INTERFACE = "com.anormous.mapper.EntityAccessor";
+	private static final String CLASS_SUFFIX = "_AnormousAccessor";
+
+	private final Set<String> generated = new HashSet<String>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion()
+	{
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+	{
+		Set<TypeElement> entities = new LinkedHashSet<TypeElement>();
+
+		for (TypeElement annotation : annotations)
+		{
+			for (Element element : roundEnv.getElementsAnnotatedWith(annotation))
+			{
+				Element type = element.getKind() == ElementKind.CLASS ? element : element.getEnclosingElement();
+
+				if (type != null && type.getKind() == ElementKind.CLASS)
+					entities.add((TypeElement) type);
+			}
+		}
+
+		for (TypeElement entity : entities)
+		{
+			if (generated.add(entity.getQualifiedName().toString()) && isAccessible(entity))
+				generate(entity);
+		}
+
+		// Other processors may be interested in the same annotations
+		return false;
+	}
+
+	private boolean isAccessible(TypeElement entity)
+	{
+		if (entity.getModifiers().contains(Modifier.ABSTRACT))
+			return skip(entity, "it is abstract");
+
+		for (Element element = entity; element.getKind() == ElementKind.CLASS; element = element.getEnclosingElement())
+		{
+			TypeElement type = (TypeElement) element;
+
+			if (type.getNestingKind() != NestingKind.TOP_LEVEL && type.getNestingKind() != NestingKind.MEMBER)
+				return skip(entity, "it is a local or anonymous class");
+
+			if (type.getModifiers().contains(Modifier.PRIVATE))
+				return skip(entity, "it is not visible from its package");
+
+			if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC))
+				return skip(entity, "it is an inner class");
+		}
+
+		for (ExecutableElement constructor : ElementFilter.constructorsIn(entity.getEnclosedElements()))
+		{
+			if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE))
+				return true;
+		}
+
+		return skip(entity, "it has no accessible no argument constructor");
+	}
+
+	private boolean skip(TypeElement entity, String reason)
+	{
+		processingEnv.getMessager().printMessage(Kind.NOTE, "No accessor generated for " + entity.getQualifiedName() + " as " + reason + ", reflection will be used at runtime", entity);
+
+		return false;
+	}
+
+	private void generate(TypeElement entity)
+	{
+		Elements elements = processingEnv.getElementUtils();
+		PackageElement packageElement = elements.getPackageOf(entity);
+
+		String binaryName = elements.getBinaryName(entity).toString();
+		String accessorName = binaryName.replace('$', '_') + CLASS_SUFFIX;
+		String simpleName = accessorName.substring(accessorName.lastIndexOf('.') + 1);
+
+		List<PropertyModel> properties = new ArrayList<PropertyModel>(findProperties(entity).values());
+
+		try
+		{
+			JavaFileObject file = processingEnv.getFiler().createSourceFile(accessorName, entity);
+			PrintWriter out = new PrintWriter(file.openWriter());
+
+			try
+			{
+				write(out, packageElement.isUnnamed() ? null : packageElement.getQualifiedName().toString(), simpleName, entity, properties);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			processingEnv.getMessager().printMessage(Kind.ERROR, "Can not write accessor for " + entity.getQualifiedName() + " : " + ex.getMessage(), entity);
+		}
+	}
+
+	private Map<String, PropertyModel> findProperties(TypeElement entity)
+	{
+		Elements elements = processingEnv.getElementUtils();
+		Types types = processingEnv.getTypeUtils();
+
+		List<? extends Element> members = elements.getAllMembers(entity);
+		Map<String, VariableElement> publicFields = new LinkedHashMap<String, VariableElement>();
+
+		for (VariableElement field : ElementFilter.fieldsIn(members))
+		{
+			if (field.getModifiers().contains(Modifier.PUBLIC))
+				publicFields.put(field.getSimpleName().toString(), field);
+		}
+
+		Map<String, PropertyModel> result = new LinkedHashMap<String, PropertyModel>();
+
+		for (ExecutableElement getter : ElementFilter.methodsIn(members))
+		{
+			String name = getter.getSimpleName().toString();
+			int prefix = name.startsWith("get") ? 3 : (name.startsWith("is") ? 2 : 0);
+
+			if (prefix == 0 || name.length() == prefix || !getter.getParameters().isEmpty() || !getter.getModifiers().contains(Modifier.PUBLIC) || getter.getReturnType().getKind() == TypeKind.VOID)
+				continue;
+
+			if (hasAnnotation(getter, IGNORE))
+				continue;
+
+			String propertyName = Character.toLowerCase(name.charAt(prefix)) + name.substring(prefix + 1);
+
+			if (result.containsKey(propertyName))
+				continue;
+
+			PropertyModel property = new PropertyModel(propertyName, types.erasure(getter.getReturnType()));
+
+			// A public field of the same name wins over the getter and setter,
+			// as it does at runtime
+			property.field = publicFields.get(propertyName);
+			property.getter = getter;
+			property.setter = findSetter(members, "set" + name.substring(prefix), property.type);
+
+			result.put(propertyName, property);
+		}
+
+		for (VariableElement field : publicFields.values())
+		{
+			String propertyName = field.getSimpleName().toString();
+
+			if (propertyName.equals("class") || result.containsKey(propertyName) || hasAnnotation(field, IGNORE))
+				continue;
+
+			PropertyModel property = new PropertyModel(propertyName, types.erasure(field.asType()));
+			property.field = field;
+
+			result.put(propertyName, property);
+		}
+
+		return result;
+	}
+
+	private ExecutableElement findSetter(List<? extends Element> members, String setterName, TypeMirror type)
+	{
+		Types types = processingEnv.getTypeUtils();
+
+		for (ExecutableElement method : ElementFilter.methodsIn(members))
+		{
+			if (method.getSimpleName().contentEquals(setterName) && method.getModifiers().contains(Modifier.PUBLIC) && method.getParameters().size() == 1 && types.isSameType(types.erasure(method.getParameters().get(0).asType()), type))
+				return method;
+		}
+
+		return null;
+	}
+
+	private boolean hasAnnotation(Element element, String annotationName)
+	{
+		for (AnnotationMirror mirror : element.getAnnotationMirrors())
+		{
+			if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotationName))
+				return true;
+		}
+
+		return false;
+	}
+
+	private void write(PrintWriter out, String packageName, String simpleName, TypeElement entity, List<PropertyModel> properties)
+	{
+		String entityName = processingEnv.getTypeUtils().erasure(entity.asType()).toString();
+
+		if (packageName != null)
+		{
+			out.println("package " + packageName + ";");
+			out.println();
+		}
+
+		out.println("/**");
+		out.println(" * Generated by the Anormous annotation processor from " + entity.getQualifiedName() + ", do not edit.");
+		out.println(" */");
+		out.println("@SuppressWarnings({ \"unchecked\", \"rawtypes\" })");
+		out.println("public final class " + simpleName + " implements " + ACCESSOR_INTERFACE + "<" + entityName + ">");
+		out.println("{");
+
+		out.println("\t@Override");
+		out.println("\tpublic " + entityName + " newInstance()");
+		out.println("\t{");
+		out.println("\t\treturn new " + entityName + "();");
+		out.println("\t}");
+		out.println();
+
+		out.println("\t@Override");
+		out.println("\tpublic int indexOf(String propertyName)");
+		out.println("\t{");
+
+		for (int i = 0; i < properties.size(); i++)
+		{
+			out.println("\t\tif (\"" + properties.get(i).name + "\".equals(propertyName))");
+			out.println("\t\t\treturn " + i + ";");
+		}
+
+		out.println();
+		out.println("\t\treturn -1;");
+		out.println("\t}");
+		out.println();
+
+		out.println("\t@Override");
+		out.println("\tpublic Object get(" + entityName + " bean, int propertyIndex)");
+		out.println("\t{");
+		out.println("\t\tswitch (propertyIndex)");
+		out.println("\t\t{");
+
+		for (int i = 0; i < properties.size(); i++)
+		{
+			PropertyModel property = properties.get(i);
+
+			out.println("\t\t\tcase " + i + ":");
+
+			if (property.field != null)
+				out.println("\t\t\t\treturn " + qualifier(property.field, entityName) + "." + property.field.getSimpleName() + ";");
+			else
+				out.println("\t\t\t\treturn " + qualifier(property.getter, entityName) + "." + property.getter.getSimpleName() + "();");
+		}
+
+		out.println("\t\t\tdefault:");
+		out.println("\t\t\t\tthrow new IllegalArgumentException(\"Unknown property index : \" + propertyIndex);");
+		out.println("\t\t}");
+		out.println("\t}");
+		out.println();
+
+		out.println("\t@Override");
+		out.println("\tpublic void set(" + entityName + " bean, int propertyIndex, Object value)");
+		out.println("\t{");
+		out.println("\t\tswitch (propertyIndex)");
+		out.println("\t\t{");
+
+		for (int i = 0; i < properties.size(); i++)
+		{
+			PropertyModel property = properties.get(i);
+			String cast = "(" + boxedName(property.type) + ") value";
+
+			out.println("\t\t\tcase " + i + ":");
+
+			if (property.field != null && !property.field.getModifiers().contains(Modifier.FINAL))
+			{
+				out.println("\t\t\t\t" + qualifier(property.field, entityName) + "." + property.field.getSimpleName() + " = " + cast + ";");
+				out.println("\t\t\t\tbreak;");
+			}
+			else if (property.field == null && property.setter != null)
+			{
+				out.println("\t\t\t\t" + qualifier(property.setter, entityName) + "." + property.setter.getSimpleName() + "(" + cast + ");");
+				out.println("\t\t\t\tbreak;");
+			}
+			else
+			{
+				out.println("\t\t\t\tthrow new UnsupportedOperationException(\"Property " + property.name + " of " + entity.getSimpleName() + " is read only\");");
+			}
+		}
+
+		out.println("\t\t\tdefault:");
+		out.println("\t\t\t\tthrow new IllegalArgumentException(\"Unknown property index : \" + propertyIndex);");
+		out.println("\t\t}");
+		out.println("\t}");
+		out.println("}");
+	}
+
+	private String qualifier(Element member, String entityName)
+	{
+		return member.getModifiers().contains(Modifier.STATIC) ? entityName : "bean";
+	}
+
+	private String boxedName(TypeMirror type)
+	{
+		if (type.getKind().isPrimitive())
+			return processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName().toString();
+
+		return type.toString();
+	}
+
+	private static class PropertyModel
+	{
+		final String name;
+		final TypeMirror type;
+		ExecutableElement getter;
+		ExecutableElement setter;
+		VariableElement field;
+
+		PropertyModel(String name, TypeMirror type)
+		{
+			this.name = name;
+			this.type = type;
+		}
+	}
+}